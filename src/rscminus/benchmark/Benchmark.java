@@ -0,0 +1,65 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.benchmark;
+
+/**
+ * Minimal timing harness for the benchmark mains. Each operation is warmed up first so the JIT
+ * has compiled it, then run in batches until the measurement time has passed.
+ */
+public class Benchmark {
+    // Keeps results alive so the JIT can't remove the work
+    private static long m_sink;
+
+    public static final long WARMUP_TIME = 2000000000L;
+    public static final long MEASURE_TIME = 5000000000L;
+
+    public interface Operation {
+        long run();
+    }
+
+    private static long runFor(Operation operation, long time) {
+        long start = System.nanoTime();
+        long count = 0;
+        long batch = 1;
+        while (System.nanoTime() - start < time) {
+            for (long i = 0; i < batch; i++)
+                m_sink += operation.run();
+            count += batch;
+            batch = Math.min(batch << 1, 1 << 16);
+        }
+        return count;
+    }
+
+    // Returns single threaded operations per second
+    public static double measure(String name, Operation operation) {
+        runFor(operation, WARMUP_TIME);
+
+        long start = System.nanoTime();
+        long count = runFor(operation, MEASURE_TIME);
+        double seconds = (System.nanoTime() - start) / 1000000000.0;
+        double rate = count / seconds;
+        System.out.println(String.format("%-32s %14.1f ops/s %12.1f ns/op", name, rate, 1000000000.0 / rate));
+        return rate;
+    }
+
+    public static long getSink() {
+        return m_sink;
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.benchmark;
+
+import rscminus.common.ISAACCipher;
+
+import java.util.Random;
+
+/**
+ * ISAAC keystream generation one value at a time versus in blocks, and the cost of keying the
+ * incoming and outgoing ciphers of a login.
+ */
+public class ISAACBenchmark {
+    public static final int BLOCK_SIZE = 1024;
+
+    public static void main(String args[]) {
+        Random random = new Random(0);
+        int keys[] = { random.nextInt(), random.nextInt(), random.nextInt(), random.nextInt() };
+        ISAACCipher incoming = new ISAACCipher();
+        ISAACCipher outgoing = new ISAACCipher();
+        incoming.setKeys(keys);
+        int values[] = new int[BLOCK_SIZE];
+
+        System.out.println("ISAAC keystream, " + BLOCK_SIZE + " values:");
+        Benchmark.measure("getNextValue", () -> {
+            long sum = 0;
+            for (int i = 0; i < BLOCK_SIZE; i++)
+                sum += incoming.getNextValue();
+            return sum;
+        });
+        Benchmark.measure("getNextValues", () -> {
+            incoming.getNextValues(values, 0, BLOCK_SIZE);
+            return values[BLOCK_SIZE - 1];
+        });
+        System.out.println();
+
+        System.out.println("ISAAC login keying:");
+        Benchmark.measure("setKeys x2", () -> {
+            incoming.setKeys(keys);
+            outgoing.setKeys(keys);
+            return outgoing.getNextValue();
+        });
+        Benchmark.measure("setKeys + copyFrom", () -> {
+            incoming.setKeys(keys);
+            outgoing.copyFrom(incoming);
+            return outgoing.getNextValue();
+        });
+    }
+}
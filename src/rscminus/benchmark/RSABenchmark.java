@@ -0,0 +1,74 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.benchmark;
+
+import rscminus.common.RSAEngine;
+
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPrivateKeySpec;
+import java.util.Random;
+
+/**
+ * Login block decryption rate per core, with and without CRT, for each key size given on the
+ * command line.
+ */
+public class RSABenchmark {
+    public static final int DEFAULT_KEY_SIZES[] = { 512, 1024, 2048, 4096 };
+
+    // Opcode, four session keys and a password
+    public static final int LOGIN_BLOCK_SIZE = 1 + 16 + 21;
+
+    public static void main(String args[]) throws Exception {
+        int keySizes[] = DEFAULT_KEY_SIZES;
+        if (args.length > 0) {
+            keySizes = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                keySizes[i] = Integer.parseInt(args[i]);
+        }
+
+        Random random = new Random(0);
+        for (int keySize : keySizes) {
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+            keyPairGenerator.initialize(keySize);
+            KeyPair keyPair = keyPairGenerator.genKeyPair();
+            RSAPublicKey publicKey = (RSAPublicKey)keyPair.getPublic();
+            RSAPrivateKey crtKey = (RSAPrivateKey)keyPair.getPrivate();
+            RSAPrivateKey plainKey = (RSAPrivateKey)KeyFactory.getInstance("RSA").generatePrivate(
+                    new RSAPrivateKeySpec(crtKey.getModulus(), crtKey.getPrivateExponent()));
+
+            RSAEngine crtEngine = new RSAEngine(publicKey, crtKey);
+            RSAEngine plainEngine = new RSAEngine(publicKey, plainKey);
+
+            byte block[] = new byte[LOGIN_BLOCK_SIZE];
+            random.nextBytes(block);
+            block[0] = 10;
+            byte encrypted[] = crtEngine.encrypt(block, 0, block.length);
+
+            System.out.println("RSA " + keySize + " bit, logins/s per core:");
+            double plain = Benchmark.measure("decrypt", () -> plainEngine.decrypt(encrypted, 0, encrypted.length).length);
+            double crt = Benchmark.measure("decrypt (CRT)", () -> crtEngine.decrypt(encrypted, 0, encrypted.length).length);
+            System.out.println(String.format("CRT speedup: %.2fx\n", crt / plain));
+        }
+    }
+}
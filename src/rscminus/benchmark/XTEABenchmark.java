@@ -0,0 +1,58 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.benchmark;
+
+import rscminus.common.Crypto;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * XTEA decryption of a login sized block and of a full network buffer, copying versus in place
+ * on an array and on a direct buffer.
+ */
+public class XTEABenchmark {
+    public static final int BLOCK_SIZES[] = { 48, 5000 };
+
+    public static void main(String args[]) {
+        Random random = new Random(0);
+        int keys[] = { random.nextInt(), random.nextInt(), random.nextInt(), random.nextInt() };
+
+        for (int size : BLOCK_SIZES) {
+            byte data[] = new byte[size];
+            random.nextBytes(data);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+            buffer.put(data);
+
+            // Decrypting the same data over and over is fine, the work doesn't depend on it
+            System.out.println("XTEA " + size + " bytes:");
+            Benchmark.measure("decrypt (copy)", () -> Crypto.decryptXTEA(data, 0, size, keys)[0]);
+            Benchmark.measure("decrypt in place (array)", () -> {
+                Crypto.decryptXTEAInPlace(data, 0, size, keys);
+                return data[0];
+            });
+            Benchmark.measure("decrypt in place (direct)", () -> {
+                Crypto.decryptXTEAInPlace(buffer, 0, size, keys);
+                return buffer.get(0);
+            });
+            System.out.println();
+        }
+    }
+}
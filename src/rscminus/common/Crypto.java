@@ -40,6 +40,7 @@ import org.bouncycastle.util.io.pem.PemWriter;
 public class Crypto {
     private static RSAPublicKey publicKey;
     private static RSAPrivateKey privateKey;
+    private static RSAEngine rsaEngine;
 
     private static final int XTEA_NUM_ROUNDS = 32;
     private static final int XTEA_DELTA = 0x9e3779b9;
@@ -59,13 +60,35 @@ public class Crypto {
 
     public static byte[] decryptXTEA(byte[] data, int offset, int length, int[] keys) {
         byte[] ret = new byte[length];
-        int blocks = length / 8;
+        System.arraycopy(data, offset, ret, 0, length);
+        decryptXTEAInPlace(ret, 0, length, keys);
+        return ret;
+    }
 
-        ByteBuffer input = ByteBuffer.wrap(data, offset, length);
-        ByteBuffer output = ByteBuffer.wrap(ret);
-        for (int i = 0; i < blocks; i++) {
-            int v0 = input.getInt();
-            int v1 = input.getInt();
+    public static byte[] encryptXTEA(byte[] data, int offset, int length, int[] keys) {
+        byte[] ret = new byte[length];
+        System.arraycopy(data, offset, ret, 0, length);
+        encryptXTEAInPlace(ret, 0, length, keys);
+        return ret;
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return (data[offset] << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte)(value >> 24);
+        data[offset + 1] = (byte)(value >> 16);
+        data[offset + 2] = (byte)(value >> 8);
+        data[offset + 3] = (byte)value;
+    }
+
+    // Only whole 8 byte blocks are decrypted, trailing bytes are left as they are
+    public static void decryptXTEAInPlace(byte[] data, int offset, int length, int[] keys) {
+        int end = offset + (length & ~7);
+        for (int i = offset; i < end; i += 8) {
+            int v0 = getInt(data, i);
+            int v1 = getInt(data, i + 4);
 
             int sum = XTEA_NUM_ROUNDS * XTEA_DELTA;
             for (int j = 0; j < XTEA_NUM_ROUNDS; j++) {
@@ -74,19 +97,76 @@ public class Crypto {
                 v0 -= (((v1 << 4) ^ (v1 >>> 5)) + v1) ^ (sum + keys[sum & 3]);
             }
 
-            output.putInt(v0);
-            output.putInt(v1);
+            putInt(data, i, v0);
+            putInt(data, i + 4, v1);
         }
+    }
 
-        output.put(input);
+    public static void encryptXTEAInPlace(byte[] data, int offset, int length, int[] keys) {
+        int end = offset + (length & ~7);
+        for (int i = offset; i < end; i += 8) {
+            int v0 = getInt(data, i);
+            int v1 = getInt(data, i + 4);
 
-        return ret;
+            int sum = 0;
+            for (int j = 0; j < XTEA_NUM_ROUNDS; j++) {
+                v0 += (((v1 << 4) ^ (v1 >>> 5)) + v1) ^ (sum + keys[sum & 3]);
+                sum += XTEA_DELTA;
+                v1 += (((v0 << 4) ^ (v0 >>> 5)) + v0) ^ (sum + keys[(sum >>> 11) & 3]);
+            }
+
+            putInt(data, i, v0);
+            putInt(data, i + 4, v1);
+        }
+    }
+
+    // Buffer variants use absolute access, the buffer's position and limit are left untouched
+    public static void decryptXTEAInPlace(ByteBuffer buffer, int offset, int length, int[] keys) {
+        int end = offset + (length & ~7);
+        for (int i = offset; i < end; i += 8) {
+            int v0 = buffer.getInt(i);
+            int v1 = buffer.getInt(i + 4);
+
+            int sum = XTEA_NUM_ROUNDS * XTEA_DELTA;
+            for (int j = 0; j < XTEA_NUM_ROUNDS; j++) {
+                v1 -= (((v0 << 4) ^ (v0 >>> 5)) + v0) ^ (sum + keys[(sum >>> 11) & 3]);
+                sum -= XTEA_DELTA;
+                v0 -= (((v1 << 4) ^ (v1 >>> 5)) + v1) ^ (sum + keys[sum & 3]);
+            }
+
+            buffer.putInt(i, v0);
+            buffer.putInt(i + 4, v1);
+        }
+    }
+
+    public static void encryptXTEAInPlace(ByteBuffer buffer, int offset, int length, int[] keys) {
+        int end = offset + (length & ~7);
+        for (int i = offset; i < end; i += 8) {
+            int v0 = buffer.getInt(i);
+            int v1 = buffer.getInt(i + 4);
+
+            int sum = 0;
+            for (int j = 0; j < XTEA_NUM_ROUNDS; j++) {
+                v0 += (((v1 << 4) ^ (v1 >>> 5)) + v1) ^ (sum + keys[sum & 3]);
+                sum += XTEA_DELTA;
+                v1 += (((v0 << 4) ^ (v0 >>> 5)) + v0) ^ (sum + keys[(sum >>> 11) & 3]);
+            }
+
+            buffer.putInt(i, v0);
+            buffer.putInt(i + 4, v1);
+        }
+    }
+
+    public static byte[] encryptRSA(byte[] data, int offset, int length) {
+        return rsaEngine.encrypt(data, offset, length);
     }
 
     public static byte[] decryptRSA(byte[] data, int offset, int length) {
-        byte newData[] = new byte[length];
-        System.arraycopy(data, offset, newData, 0, length);
-        return new BigInteger(newData).modPow(privateKey.getPrivateExponent(), privateKey.getModulus()).toByteArray();
+        return rsaEngine.decrypt(data, offset, length);
+    }
+
+    public static int getKeySize() {
+        return rsaEngine.getKeySize();
     }
 
     public static void generateRSAKeys() {
@@ -97,7 +177,7 @@ public class Crypto {
             if(!clientKeyFile.exists() || !serverKeyFile.exists()) {
                 KeyPairGenerator keyPairGenerator;
                 keyPairGenerator = KeyPairGenerator.getInstance("RSA");
-                keyPairGenerator.initialize(512);
+                keyPairGenerator.initialize(Settings.serverRSAKeySize);
                 KeyPair keyPair = keyPairGenerator.genKeyPair();
                 PemObject pemObject = new PemObject("PUBLIC KEY", keyPair.getPublic().getEncoded());
                 PemWriter output = new PemWriter(new OutputStreamWriter(new FileOutputStream(clientKeyFile)));
@@ -114,18 +194,29 @@ public class Crypto {
     }
 
     public static void loadRSAKeys() {
+        loadPublicKey();
         try {
-            PEMParser reader = new PEMParser(new FileReader(new File("client.pem")));
+            PEMParser reader = new PEMParser(new FileReader(new File("server.pem")));
             PemObject pemObject = reader.readPemObject();
             reader.close();
-            publicKey = (RSAPublicKey)KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(pemObject.getContent()));
+            privateKey = (RSAPrivateKey)KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(pemObject.getContent()));
+            rsaEngine = new RSAEngine(publicKey, privateKey);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
-            reader = new PEMParser(new FileReader(new File("server.pem")));
-            pemObject = reader.readPemObject();
+    public static boolean loadPublicKey() {
+        try {
+            PEMParser reader = new PEMParser(new FileReader(new File("client.pem")));
+            PemObject pemObject = reader.readPemObject();
             reader.close();
-            privateKey = (RSAPrivateKey)KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(pemObject.getContent()));
+            publicKey = (RSAPublicKey)KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(pemObject.getContent()));
+            rsaEngine = new RSAEngine(publicKey, null);
+            return true;
         } catch (Exception e) {
             e.printStackTrace();
+            return false;
         }
     }
 }
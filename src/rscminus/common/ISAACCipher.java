@@ -86,9 +86,16 @@ public class ISAACCipher {
      * @param seed The seed.
      */
     public void setKeys(int[] seed) {
+        // init overwrites all of memory, only the seed and counters need clearing
         for(int i = 0; i < seed.length; i++) {
             results[i] = seed[i];
         }
+        for(int i = seed.length; i < SIZE; i++) {
+            results[i] = 0;
+        }
+        a = 0;
+        b = 0;
+        c = 0;
         init(true);
     }
 
@@ -117,6 +124,40 @@ public class ISAACCipher {
         return results[count];
     }
 
+    /**
+     * Gets a block of values, in the same order repeated calls to
+     * getNextValue would return them.
+     * @param values The array to fill.
+     * @param offset The first index to fill.
+     * @param length The number of values.
+     */
+    public void getNextValues(int[] values, int offset, int length) {
+        int end = offset + length;
+        while (offset < end) {
+            if(count == 0) {
+                isaac();
+                count = SIZE;
+            }
+            int n = Math.min(end - offset, count);
+            for(int i = 0; i < n; i++)
+                values[offset++] = results[--count];
+        }
+    }
+
+    /**
+     * Copies the state of another cipher, so a second cipher with the same
+     * keys doesn't have to be initialised again.
+     * @param other The cipher to copy.
+     */
+    public void copyFrom(ISAACCipher other) {
+        System.arraycopy(other.results, 0, results, 0, SIZE);
+        System.arraycopy(other.memory, 0, memory, 0, SIZE);
+        count = other.count;
+        a = other.a;
+        b = other.b;
+        c = other.c;
+    }
+
     /**
      * Generates 256 results.
      */
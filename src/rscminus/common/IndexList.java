@@ -0,0 +1,111 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.common;
+
+/**
+ * Doubly linked list of indices threaded through next/previous arrays keyed by index. Lists created
+ * from another list share its arrays, so an index can only be in one of them at a time. Adding,
+ * removing and iterating never allocate, and iteration follows insertion order.
+ */
+public class IndexList {
+    private int m_next[];
+    private int m_previous[];
+    private IndexList m_owners[];
+    private int m_head;
+    private int m_tail;
+    private int m_size;
+
+    // Constants
+    public static final int NONE = -1;
+
+    public IndexList(int capacity) {
+        m_next = new int[capacity];
+        m_previous = new int[capacity];
+        m_owners = new IndexList[capacity];
+        m_head = NONE;
+        m_tail = NONE;
+    }
+
+    public IndexList(IndexList shared) {
+        m_next = shared.m_next;
+        m_previous = shared.m_previous;
+        m_owners = shared.m_owners;
+        m_head = NONE;
+        m_tail = NONE;
+    }
+
+    public int size() {
+        return m_size;
+    }
+
+    public boolean isEmpty() {
+        return m_size == 0;
+    }
+
+    public boolean contains(int index) {
+        return m_owners[index] == this;
+    }
+
+    public int getFirst() {
+        return m_head;
+    }
+
+    public int getNext(int index) {
+        return m_next[index];
+    }
+
+    public void add(int index) {
+        if (m_owners[index] != null)
+            return;
+        m_owners[index] = this;
+        m_previous[index] = m_tail;
+        m_next[index] = NONE;
+        if (m_tail != NONE)
+            m_next[m_tail] = index;
+        else
+            m_head = index;
+        m_tail = index;
+        m_size++;
+    }
+
+    public void remove(int index) {
+        if (m_owners[index] != this)
+            return;
+        int previous = m_previous[index];
+        int next = m_next[index];
+        if (previous != NONE)
+            m_next[previous] = next;
+        else
+            m_head = next;
+        if (next != NONE)
+            m_previous[next] = previous;
+        else
+            m_tail = previous;
+        m_owners[index] = null;
+        m_size--;
+    }
+
+    public void unlink(int index) {
+        // Removes the index from whichever list sharing these links holds it
+        IndexList owner = m_owners[index];
+        if (owner != null)
+            owner.remove(index);
+    }
+}
@@ -57,12 +57,21 @@ public class JGameData {
     public static byte regionCollisionMask[][][][];
     public static byte regionDirection[][][][];
 
+    // Content archives
+    public static final String CONTENT_CONFIG = "content0_229aa476";
+    public static final String CONTENT_LANDSCAPE = "content4_ffffffffaaca2b0d";
+    public static final String CONTENT_LANDSCAPE_MEMBERS = "content5_6a1d6b00";
+
     public static boolean init(boolean member) {
+        return init(member, true);
+    }
+
+    public static boolean init(boolean member, boolean landscape) {
         JContent content = new JContent();
         JContent contentMembers = new JContent();
 
         // Read content0 (Configuration)
-        if(!content.open("content0_229aa476"))
+        if(!content.open(CONTENT_CONFIG))
             return false;
         JContentFile string = content.unpack("string.dat");
         if (string == null)
@@ -265,15 +274,19 @@ public class JGameData {
             System.out.println("id: " + i + ", name: '" + animationName[i] + "', index: " + animationIndex[i]);
         }
 
+        // The landscape can be skipped when the server loads a precompiled world image
+        if (!landscape)
+            return true;
+
         int maxRegionWidth = Game.WORLD_WIDTH / Game.REGION_WIDTH;
         int maxRegionHeight = Game.WORLD_HEIGHT / Game.REGION_HEIGHT;
         regionCollisionMask = new byte[maxRegionWidth][maxRegionHeight][Game.REGION_FLOORS][Game.REGION_SIZE];
         regionDirection = new byte[maxRegionWidth][maxRegionHeight][Game.REGION_FLOORS][Game.REGION_SIZE];
 
         // Read content6 (landscape)
-        if (!content.open("content4_ffffffffaaca2b0d"))
+        if (!content.open(CONTENT_LANDSCAPE))
             return false;
-        if (!contentMembers.open("content5_6a1d6b00"))
+        if (!contentMembers.open(CONTENT_LANDSCAPE_MEMBERS))
             return false;
         for (int x = 0; x < maxRegionWidth; x++) {
             for (int y = 0; y < maxRegionHeight; y++) {
@@ -0,0 +1,85 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.common;
+
+import java.math.BigInteger;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+
+/**
+ * Raw RSA as used by the login block. Private keys with CRT parameters are decrypted with two
+ * half size exponentiations instead of one full size one, which is several times faster.
+ */
+public class RSAEngine {
+    private BigInteger m_modulus;
+    private BigInteger m_publicExponent;
+    private BigInteger m_privateExponent;
+
+    // Chinese remainder theorem parameters, null if the private key doesn't have them
+    private BigInteger m_p;
+    private BigInteger m_q;
+    private BigInteger m_dP;
+    private BigInteger m_dQ;
+    private BigInteger m_qInv;
+
+    public RSAEngine(RSAPublicKey publicKey, RSAPrivateKey privateKey) {
+        if (publicKey != null) {
+            m_modulus = publicKey.getModulus();
+            m_publicExponent = publicKey.getPublicExponent();
+        }
+        if (privateKey != null) {
+            m_modulus = privateKey.getModulus();
+            m_privateExponent = privateKey.getPrivateExponent();
+            if (privateKey instanceof RSAPrivateCrtKey) {
+                RSAPrivateCrtKey crtKey = (RSAPrivateCrtKey)privateKey;
+                m_p = crtKey.getPrimeP();
+                m_q = crtKey.getPrimeQ();
+                m_dP = crtKey.getPrimeExponentP();
+                m_dQ = crtKey.getPrimeExponentQ();
+                m_qInv = crtKey.getCrtCoefficient();
+            }
+        }
+    }
+
+    public int getKeySize() {
+        return m_modulus.bitLength();
+    }
+
+    public boolean isCRT() {
+        return m_p != null;
+    }
+
+    public byte[] encrypt(byte[] data, int offset, int length) {
+        return new BigInteger(data, offset, length).modPow(m_publicExponent, m_modulus).toByteArray();
+    }
+
+    public byte[] decrypt(byte[] data, int offset, int length) {
+        BigInteger input = new BigInteger(data, offset, length);
+        if (m_p == null)
+            return input.modPow(m_privateExponent, m_modulus).toByteArray();
+
+        // Garner's recombination, m = m2 + q * (qInv * (m1 - m2) mod p)
+        BigInteger m1 = input.mod(m_p).modPow(m_dP, m_p);
+        BigInteger m2 = input.mod(m_q).modPow(m_dQ, m_q);
+        BigInteger h = m1.subtract(m2).multiply(m_qInv).mod(m_p);
+        return h.multiply(m_q).add(m2).toByteArray();
+    }
+}
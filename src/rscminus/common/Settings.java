@@ -50,6 +50,23 @@ public class Settings {
   public static String scraperOutputPath = "dump";
 
 
+  // Server Settings
+  public static int serverNetworkThreads = 2;
+  public static int serverTickThreads = 0;
+  public static boolean serverTickReport = false;
+  public static int serverTickCatchUp = 0; // See TickManager.CATCHUP_*
+  public static int serverMetricsPort = 0; // Disabled
+  public static int serverLoginThreads = 2;
+  public static int serverLoginsPerTick = 25; // 0 is unlimited
+  public static int serverRSAKeySize = 512; // Only used when generating new keys
+  public static int serverHandshakeMax = 500;
+  public static int serverHandshakeTimeout = 10000; // Milliseconds
+  public static double serverConnectRate = 2.0; // Per address per second, 0 is unlimited
+  public static int serverConnectBurst = 10;
+  public static boolean serverAdmitLoopback = false; // Exempt loopback from the connect rate
+  public static int serverShardSize = 64; // View areas per shard side, 0 is one shard
+
+
   // Utils that probably don't belong in settings, but are in Settings.java in RSC+
   public static class Dir {
 
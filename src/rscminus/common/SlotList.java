@@ -0,0 +1,78 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.common;
+
+import java.util.BitSet;
+
+/**
+ * Tracks which slots of a fixed capacity table are in use. Used slots are kept in a dense array so
+ * iteration scales with the number of used slots, and a bitmap finds free slots a word at a time.
+ * Removal swaps the last entry into the removed position, so iteration order is not slot order.
+ */
+public class SlotList {
+    private BitSet m_used;
+    private int m_slots[];
+    private int m_positions[];
+    private int m_size;
+    private int m_capacity;
+
+    public SlotList(int capacity) {
+        m_capacity = capacity;
+        m_used = new BitSet(capacity);
+        m_slots = new int[capacity];
+        m_positions = new int[capacity];
+        m_size = 0;
+    }
+
+    public int size() {
+        return m_size;
+    }
+
+    public int get(int index) {
+        return m_slots[index];
+    }
+
+    public boolean contains(int slot) {
+        return m_used.get(slot);
+    }
+
+    public int findFree() {
+        int slot = m_used.nextClearBit(0);
+        return (slot < m_capacity) ? slot : -1;
+    }
+
+    public void add(int slot) {
+        if (m_used.get(slot))
+            return;
+        m_used.set(slot);
+        m_positions[slot] = m_size;
+        m_slots[m_size++] = slot;
+    }
+
+    public void remove(int slot) {
+        if (!m_used.get(slot))
+            return;
+        m_used.clear(slot);
+        int position = m_positions[slot];
+        int last = m_slots[--m_size];
+        m_slots[position] = last;
+        m_positions[last] = position;
+    }
+}
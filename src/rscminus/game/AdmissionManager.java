@@ -0,0 +1,153 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.game;
+
+import rscminus.common.Settings;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether an accepted connection may enter the login queue. The queue is bounded and
+ * every source address has a token bucket refilled at a fixed rate. Only used from the game
+ * thread, except for the counters.
+ */
+public class AdmissionManager {
+    private HashMap<InetAddress, TokenBucket> m_buckets;
+    private long m_lastCleanup;
+    private LongAdder m_admitted;
+    private LongAdder m_rateLimited;
+    private LongAdder m_queueFull;
+    private LongAdder m_timedOut;
+
+    // Results
+    public static final int ADMIT = 0;
+    public static final int REJECT_RATE_LIMITED = 1;
+    public static final int REJECT_QUEUE_FULL = 2;
+
+    // Full buckets are forgotten after this long
+    public static final long BUCKET_CLEANUP_INTERVAL = 60000000000L;
+
+    private static class TokenBucket {
+        double tokens;
+        long lastUpdate;
+    }
+
+    public AdmissionManager() {
+        m_buckets = new HashMap<InetAddress, TokenBucket>();
+        m_lastCleanup = System.nanoTime();
+        m_admitted = new LongAdder();
+        m_rateLimited = new LongAdder();
+        m_queueFull = new LongAdder();
+        m_timedOut = new LongAdder();
+    }
+
+    private void refill(TokenBucket bucket, long now) {
+        double elapsed = (now - bucket.lastUpdate) / 1000000000.0;
+        bucket.tokens = Math.min(Settings.serverConnectBurst, bucket.tokens + elapsed * Settings.serverConnectRate);
+        bucket.lastUpdate = now;
+    }
+
+    private void cleanup(long now) {
+        Iterator<TokenBucket> buckets = m_buckets.values().iterator();
+        while (buckets.hasNext()) {
+            TokenBucket bucket = buckets.next();
+            refill(bucket, now);
+            if (bucket.tokens >= Settings.serverConnectBurst)
+                buckets.remove();
+        }
+        m_lastCleanup = now;
+    }
+
+    private boolean takeToken(SocketChannel socket, long now) {
+        if (Settings.serverConnectRate <= 0)
+            return true;
+
+        InetAddress address;
+        try {
+            address = ((InetSocketAddress)socket.getRemoteAddress()).getAddress();
+        } catch (Exception e) {
+            return false;
+        }
+
+        // Local tools such as the load tester can be exempted, but not by default since a local
+        // reverse proxy would make every client look like loopback
+        if (Settings.serverAdmitLoopback && address.isLoopbackAddress())
+            return true;
+
+        TokenBucket bucket = m_buckets.get(address);
+        if (bucket == null) {
+            bucket = new TokenBucket();
+            bucket.tokens = Settings.serverConnectBurst;
+            bucket.lastUpdate = now;
+            m_buckets.put(address, bucket);
+        } else {
+            refill(bucket, now);
+        }
+
+        if (bucket.tokens < 1.0)
+            return false;
+        bucket.tokens -= 1.0;
+        return true;
+    }
+
+    public int admit(SocketChannel socket, int queued) {
+        long now = System.nanoTime();
+        if (now - m_lastCleanup > BUCKET_CLEANUP_INTERVAL)
+            cleanup(now);
+
+        if (!takeToken(socket, now)) {
+            m_rateLimited.increment();
+            return REJECT_RATE_LIMITED;
+        }
+
+        if (queued >= Settings.serverHandshakeMax) {
+            m_queueFull.increment();
+            return REJECT_QUEUE_FULL;
+        }
+
+        m_admitted.increment();
+        return ADMIT;
+    }
+
+    public void recordTimeout() {
+        m_timedOut.increment();
+    }
+
+    public long getAdmittedCount() {
+        return m_admitted.sum();
+    }
+
+    public long getRateLimitedCount() {
+        return m_rateLimited.sum();
+    }
+
+    public long getQueueFullCount() {
+        return m_queueFull.sum();
+    }
+
+    public long getTimedOutCount() {
+        return m_timedOut.sum();
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.game;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Fixed size direct buffers for socket I/O, carved out of larger slabs so the kernel can read and
+ * write them without the JDK copying through a temporary buffer. Connections lease buffers while
+ * they are active and release them when they disconnect.
+ */
+public class BufferPool {
+    private ConcurrentLinkedQueue<ByteBuffer> m_free;
+    private int m_segmentSize;
+    private int m_segmentCount;
+
+    public static final int DEFAULT_SEGMENT_SIZE = NetworkStream.DEFAULT_SIZE;
+    public static final int SLAB_SEGMENTS = 64;
+
+    public BufferPool(int segmentSize) {
+        m_free = new ConcurrentLinkedQueue<ByteBuffer>();
+        m_segmentSize = segmentSize;
+        m_segmentCount = 0;
+    }
+
+    private synchronized void allocateSlab() {
+        // Another thread may have refilled the pool while we waited
+        if (!m_free.isEmpty())
+            return;
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(m_segmentSize * SLAB_SEGMENTS);
+        for (int i = 0; i < SLAB_SEGMENTS; i++) {
+            slab.limit((i + 1) * m_segmentSize);
+            slab.position(i * m_segmentSize);
+            m_free.add(slab.slice());
+        }
+        m_segmentCount += SLAB_SEGMENTS;
+    }
+
+    public ByteBuffer lease() {
+        ByteBuffer buffer;
+        while ((buffer = m_free.poll()) == null)
+            allocateSlab();
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        // Streams that outgrew their segment are left to the garbage collector
+        if (buffer.isDirect() && buffer.capacity() == m_segmentSize)
+            m_free.add(buffer);
+    }
+
+    public int getSegmentSize() {
+        return m_segmentSize;
+    }
+
+    public synchronized int getSegmentCount() {
+        return m_segmentCount;
+    }
+
+    public int getFreeCount() {
+        return m_free.size();
+    }
+}
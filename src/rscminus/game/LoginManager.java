@@ -0,0 +1,73 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.game;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes and decrypts login packets on worker threads. Decoded logins wait in a queue until
+ * the game thread admits them at the start of the next tick.
+ */
+public class LoginManager {
+    private ExecutorService m_workers;
+    private ConcurrentLinkedQueue<QueuedPlayer> m_decoded;
+    private AtomicInteger m_pending;
+
+    public LoginManager() {
+        m_decoded = new ConcurrentLinkedQueue<QueuedPlayer>();
+        m_pending = new AtomicInteger();
+    }
+
+    public void init(int threads) {
+        AtomicInteger id = new AtomicInteger();
+        m_workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "LoginWorker-" + id.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void stop() {
+        if (m_workers != null)
+            m_workers.shutdownNow();
+    }
+
+    public void submit(QueuedPlayer player) {
+        m_pending.incrementAndGet();
+        m_workers.execute(() -> {
+            player.decodeLogin();
+            m_decoded.add(player);
+        });
+    }
+
+    public QueuedPlayer poll() {
+        QueuedPlayer player = m_decoded.poll();
+        if (player != null)
+            m_pending.decrementAndGet();
+        return player;
+    }
+
+    public int getPendingCount() {
+        return m_pending.get();
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.game;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import rscminus.common.Histogram;
+
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.LongAdder;
+
+public class MetricsManager implements HttpHandler {
+    private Histogram m_phases[];
+    private Histogram m_tick;
+    private LongAdder m_bytesIn;
+    private LongAdder m_bytesOut;
+    private HttpServer m_httpServer;
+
+    // Tick phases, in the order Server runs them
+    public static final int PHASE_LOGIN_QUEUE = 0;
+    public static final int PHASE_INCOMING_PACKETS = 1;
+    public static final int PHASE_PROCESS = 2;
+    public static final int PHASE_CLIENT_UPDATE = 3;
+    public static final int PHASE_DISCONNECT = 4;
+    public static final int PHASE_OUTGOING_PACKETS = 5;
+    public static final int PHASE_CLEAR_UPDATES = 6;
+    public static final int PHASE_COUNT = 7;
+
+    private static final String PHASE_NAMES[] = {
+        "login_queue",
+        "incoming_packets",
+        "process",
+        "client_update",
+        "disconnect",
+        "outgoing_packets",
+        "clear_updates",
+    };
+
+    private static final double QUANTILES[] = { 0.5, 0.9, 0.99, 1.0 };
+
+    public MetricsManager() {
+        m_phases = new Histogram[PHASE_COUNT];
+        for (int i = 0; i < PHASE_COUNT; i++)
+            m_phases[i] = new Histogram();
+        m_tick = new Histogram();
+        m_bytesIn = new LongAdder();
+        m_bytesOut = new LongAdder();
+    }
+
+    public boolean start(int port) {
+        try {
+            m_httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            m_httpServer.createContext("/metrics", this);
+            m_httpServer.start();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+        System.out.println("Metrics available at http://127.0.0.1:" + port + "/metrics");
+        return true;
+    }
+
+    public void stop() {
+        if (m_httpServer != null)
+            m_httpServer.stop(0);
+    }
+
+    // Records the time since start for a phase and returns the current time for the next phase
+    public long recordPhase(int phase, long start) {
+        long now = System.nanoTime();
+        m_phases[phase].record(now - start);
+        return now;
+    }
+
+    public void recordTick(long time) {
+        m_tick.record(time);
+    }
+
+    public Histogram getTickHistogram() {
+        return m_tick;
+    }
+
+    public void addBytesIn(int length) {
+        m_bytesIn.add(length);
+    }
+
+    public void addBytesOut(int length) {
+        m_bytesOut.add(length);
+    }
+
+    private static void writeSummary(StringBuilder out, String name, String labels, Histogram histogram) {
+        String separator = labels.isEmpty() ? "" : ",";
+        for (double quantile : QUANTILES)
+            out.append(name).append("{").append(labels).append(separator).append("quantile=\"").append(quantile).append("\"} ").append(histogram.getQuantile(quantile) / 1e9).append("\n");
+        String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+        out.append(name).append("_sum").append(suffix).append(histogram.getSum() / 1e9).append("\n");
+        out.append(name).append("_count").append(suffix).append(histogram.getCount()).append("\n");
+    }
+
+    public String getReport() {
+        Server server = Server.getInstance();
+        TickManager tickManager = server.getTickManager();
+        StringBuilder out = new StringBuilder();
+
+        out.append("# TYPE rscminus_tick_seconds summary\n");
+        writeSummary(out, "rscminus_tick_seconds", "", m_tick);
+        out.append("# TYPE rscminus_tick_phase_seconds summary\n");
+        for (int i = 0; i < PHASE_COUNT; i++)
+            writeSummary(out, "rscminus_tick_phase_seconds", "phase=\"" + PHASE_NAMES[i] + "\"", m_phases[i]);
+
+        out.append("# TYPE rscminus_ticks_total counter\n");
+        out.append("rscminus_ticks_total ").append(tickManager.getTickCount()).append("\n");
+        out.append("# TYPE rscminus_ticks_late_total counter\n");
+        out.append("rscminus_ticks_late_total ").append(tickManager.getLateCount()).append("\n");
+        out.append("# TYPE rscminus_ticks_skipped_total counter\n");
+        out.append("rscminus_ticks_skipped_total ").append(tickManager.getSkipCount()).append("\n");
+
+        out.append("# TYPE rscminus_players_online gauge\n");
+        out.append("rscminus_players_online ").append(server.getPlayerManager().getPlayerCount()).append("\n");
+        AdmissionManager admissionManager = server.getAdmissionManager();
+        out.append("# TYPE rscminus_connections_total counter\n");
+        out.append("rscminus_connections_total{result=\"admitted\"} ").append(admissionManager.getAdmittedCount()).append("\n");
+        out.append("rscminus_connections_total{result=\"rate_limited\"} ").append(admissionManager.getRateLimitedCount()).append("\n");
+        out.append("rscminus_connections_total{result=\"queue_full\"} ").append(admissionManager.getQueueFullCount()).append("\n");
+        out.append("rscminus_connections_total{result=\"timed_out\"} ").append(admissionManager.getTimedOutCount()).append("\n");
+        out.append("# TYPE rscminus_logins_pending gauge\n");
+        out.append("rscminus_logins_pending ").append(server.getLoginManager().getPendingCount()).append("\n");
+
+        out.append("# TYPE rscminus_network_received_bytes_total counter\n");
+        out.append("rscminus_network_received_bytes_total ").append(m_bytesIn.sum()).append("\n");
+        out.append("# TYPE rscminus_network_sent_bytes_total counter\n");
+        out.append("rscminus_network_sent_bytes_total ").append(m_bytesOut.sum()).append("\n");
+
+        BufferPool bufferPool = server.getNetworkManager().getBufferPool();
+        int segments = bufferPool.getSegmentCount();
+        int free = bufferPool.getFreeCount();
+        out.append("# TYPE rscminus_buffer_pool_segments gauge\n");
+        out.append("rscminus_buffer_pool_segments{state=\"leased\"} ").append(segments - free).append("\n");
+        out.append("rscminus_buffer_pool_segments{state=\"free\"} ").append(free).append("\n");
+
+        out.append("# TYPE rscminus_gc_collections_total counter\n");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            out.append("rscminus_gc_collections_total{gc=\"").append(gc.getName()).append("\"} ").append(gc.getCollectionCount()).append("\n");
+        out.append("# TYPE rscminus_gc_pause_seconds_total counter\n");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            out.append("rscminus_gc_pause_seconds_total{gc=\"").append(gc.getName()).append("\"} ").append(gc.getCollectionTime() / 1e3).append("\n");
+
+        return out.toString();
+    }
+
+    public void handle(HttpExchange exchange) {
+        try {
+            byte response[] = getReport().getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, response.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(response);
+            out.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            exchange.close();
+        }
+    }
+}
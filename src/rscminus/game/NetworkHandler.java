@@ -0,0 +1,33 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.game;
+
+import java.nio.channels.SelectionKey;
+
+public interface NetworkHandler {
+    // Called by the network reader once the socket is registered
+    void setSelectionKey(SelectionKey key);
+
+    // Called by the network reader when the attached socket has data available
+    void handleRead(SelectionKey key);
+
+    // Called by the server selector when the attached socket can accept queued data
+    void handleWrite(SelectionKey key);
+}
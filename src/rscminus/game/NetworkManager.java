@@ -0,0 +1,72 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.game;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+public class NetworkManager {
+    private NetworkReader m_readers[];
+    private BufferPool m_bufferPool;
+    private int m_nextReader;
+
+    public NetworkManager() {
+        m_bufferPool = new BufferPool(BufferPool.DEFAULT_SEGMENT_SIZE);
+    }
+
+    public BufferPool getBufferPool() {
+        return m_bufferPool;
+    }
+
+    public boolean init(int threads) {
+        m_readers = new NetworkReader[Math.max(1, threads)];
+        try {
+            for (int i = 0; i < m_readers.length; i++)
+                m_readers[i] = new NetworkReader(i);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        for (int i = 0; i < m_readers.length; i++)
+            m_readers[i].start();
+        m_nextReader = 0;
+        return true;
+    }
+
+    public void stop() {
+        for (int i = 0; i < m_readers.length; i++)
+            m_readers[i].stop();
+    }
+
+    public void register(SocketChannel socket, NetworkHandler handler) {
+        m_readers[m_nextReader].register(socket, handler);
+        m_nextReader = (m_nextReader + 1) % m_readers.length;
+    }
+
+    public void resume(SelectionKey key) {
+        for (int i = 0; i < m_readers.length; i++) {
+            if (m_readers[i].getSelector() == key.selector()) {
+                m_readers[i].resume(key);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.game;
+
+import rscminus.common.SocketUtil;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class NetworkReader implements Runnable {
+    private Selector m_selector;
+    private Thread m_thread;
+    private volatile boolean m_running;
+    private ConcurrentLinkedQueue<Registration> m_registrations;
+    private ConcurrentLinkedQueue<SelectionKey> m_resumes;
+
+    private static class Registration {
+        SocketChannel socket;
+        NetworkHandler handler;
+
+        Registration(SocketChannel socket, NetworkHandler handler) {
+            this.socket = socket;
+            this.handler = handler;
+        }
+    }
+
+    public NetworkReader(int id) throws Exception {
+        m_selector = Selector.open();
+        m_registrations = new ConcurrentLinkedQueue<Registration>();
+        m_resumes = new ConcurrentLinkedQueue<SelectionKey>();
+        m_thread = new Thread(this, "NetworkReader-" + id);
+        m_thread.setDaemon(true);
+    }
+
+    public Selector getSelector() {
+        return m_selector;
+    }
+
+    public void start() {
+        m_running = true;
+        m_thread.start();
+    }
+
+    public void stop() {
+        m_running = false;
+        m_selector.wakeup();
+    }
+
+    public void register(SocketChannel socket, NetworkHandler handler) {
+        m_registrations.add(new Registration(socket, handler));
+        m_selector.wakeup();
+    }
+
+    public void resume(SelectionKey key) {
+        m_resumes.add(key);
+        m_selector.wakeup();
+    }
+
+    public void run() {
+        while (m_running) {
+            try {
+                m_selector.select();
+            } catch (Exception e) {
+                e.printStackTrace();
+                continue;
+            }
+
+            processRegistrations();
+            processResumes();
+
+            Iterator<SelectionKey> keys = m_selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid() && key.isReadable())
+                    handleRead(key);
+            }
+        }
+
+        try {
+            m_selector.close();
+        } catch (Exception e) {
+        }
+    }
+
+    private void processRegistrations() {
+        Registration registration;
+        while ((registration = m_registrations.poll()) != null) {
+            try {
+                SelectionKey key = registration.socket.register(m_selector, SelectionKey.OP_READ, registration.handler);
+                registration.handler.setSelectionKey(key);
+            } catch (Exception e) {
+                SocketUtil.close(registration.socket);
+            }
+        }
+    }
+
+    private void processResumes() {
+        SelectionKey key;
+        while ((key = m_resumes.poll()) != null) {
+            if (!key.isValid())
+                continue;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+
+            // Frame anything left buffered while we were suspended
+            handleRead(key);
+        }
+    }
+
+    private void handleRead(SelectionKey key) {
+        try {
+            ((NetworkHandler)key.attachment()).handleRead(key);
+        } catch (Exception e) {
+            // Malformed data, drop the connection
+            SocketUtil.close((SocketChannel)key.channel());
+        }
+    }
+}
@@ -26,23 +26,72 @@ import rscminus.common.MathUtil;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 
 public class NetworkStream {
     private ByteBuffer m_byteBuffer;
-    private byte[] m_buffer;
+    private BufferPool m_pool;
     private int m_position;
+    private int m_readPosition;
     private int m_bitPosition;
     private int m_packetStart;
+    private int m_countOffset;
+    private int m_count;
+
+    public static final int DEFAULT_SIZE = 5000;
 
     public NetworkStream() {
-        m_byteBuffer = ByteBuffer.allocate(5000);
-        m_buffer = m_byteBuffer.array();
+        m_byteBuffer = ByteBuffer.allocate(DEFAULT_SIZE);
+        m_position = 0;
+        m_packetStart = 0;
+    }
+
+    public NetworkStream(ByteBuffer buffer) {
+        m_byteBuffer = buffer;
+        m_position = 0;
+        m_packetStart = 0;
+    }
+
+    public NetworkStream(BufferPool pool) {
+        // Pooled streams lease their buffer on first use and hand it back on release()
+        m_pool = pool;
+        m_byteBuffer = null;
         m_position = 0;
         m_packetStart = 0;
     }
 
+    public void release() {
+        if (m_pool != null && m_byteBuffer != null) {
+            m_pool.release(m_byteBuffer);
+            m_byteBuffer = null;
+        }
+        m_position = 0;
+        m_readPosition = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (m_byteBuffer == null)
+            m_byteBuffer = m_pool.lease();
+
+        if (capacity <= m_byteBuffer.capacity())
+            return;
+
+        int size = m_byteBuffer.capacity();
+        while (size < capacity)
+            size <<= 1;
+
+        // Copy everything, packet and count offsets may point anywhere we have written
+        ByteBuffer byteBuffer = (m_pool != null) ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        m_byteBuffer.clear();
+        byteBuffer.put(m_byteBuffer);
+        byteBuffer.clear();
+        if (m_pool != null)
+            m_pool.release(m_byteBuffer);
+        m_byteBuffer = byteBuffer;
+    }
+
     public void startBitmask() {
         m_bitPosition = m_position << 3;
     }
@@ -57,25 +106,27 @@ public class NetworkStream {
         int byteSize = ((bitEnd + 7) >> 3) - start;
         int offset = m_bitPosition - (start << 3);
         int shiftedValue = value << (32 - size - offset);
+        ensureCapacity(start + byteSize);
         int bitmask = MathUtil.getBitmask(size) << (32 - size - offset);
 
         for (int i = 0; i < byteSize; i++) {
             int byteShift = (24 - (i << 3));
             int mask = (bitmask >> byteShift) & 0xFF;
             int byteValue = (shiftedValue >> byteShift) & 0xFF;
-            m_buffer[start + i] &= ~mask;
-            m_buffer[start + i] |= byteValue & mask;
+            int current = m_byteBuffer.get(start + i);
+            m_byteBuffer.put(start + i, (byte)((current & ~mask) | (byteValue & mask)));
         }
 
         m_bitPosition += size;
     }
 
-    public byte[] getByteArray() {
-        return m_buffer;
+    public ByteBuffer getByteBuffer() {
+        return m_byteBuffer;
     }
 
     public void flip() {
         m_position = 0;
+        m_readPosition = 0;
     }
 
     public int getPosition() {
@@ -94,6 +145,23 @@ public class NetworkStream {
         m_bitPosition = position;
     }
 
+    public void startCount(int offset) {
+        m_countOffset = offset;
+        m_count = 0;
+    }
+
+    public void incrementCount() {
+        m_count++;
+    }
+
+    public int getCountOffset() {
+        return m_countOffset;
+    }
+
+    public int getCount() {
+        return m_count;
+    }
+
     public void writeOpcode(int value, ISAACCipher isaacCipher) {
         writeUnsignedByte((value + isaacCipher.getNextValue()) & 0xFF);
     }
@@ -106,14 +174,14 @@ public class NetworkStream {
     public void endPacket() {
         int length = m_position - m_packetStart - 2;
         if (length >= 160) {
-            m_buffer[m_packetStart] = (byte)(length / 256 + 160);
-            m_buffer[m_packetStart + 1] = (byte)(length & 0xFF);
+            m_byteBuffer.put(m_packetStart, (byte)(length / 256 + 160));
+            m_byteBuffer.put(m_packetStart + 1, (byte)(length & 0xFF));
         } else {
-            m_buffer[m_packetStart] = (byte)length;
+            m_byteBuffer.put(m_packetStart, (byte)length);
             if (length == 1)
-                m_buffer[m_packetStart + 1] = m_buffer[m_packetStart + 2];
+                m_byteBuffer.put(m_packetStart + 1, m_byteBuffer.get(m_packetStart + 2));
             else
-                m_buffer[m_packetStart + 1] = m_buffer[m_packetStart + length + 1];
+                m_byteBuffer.put(m_packetStart + 1, m_byteBuffer.get(m_packetStart + length + 1));
             m_position--;
         }
     }
@@ -123,12 +191,22 @@ public class NetworkStream {
     }
 
     public void writeArray(byte array[], int offset, int length) {
-        System.arraycopy(array, offset, m_buffer, m_position, length);
+        ensureCapacity(m_position + length);
+        m_byteBuffer.position(m_position);
+        m_byteBuffer.put(array, offset, length);
         m_position += length;
     }
 
+    public void writeBuffer(ByteBuffer buffer) {
+        ensureCapacity(m_position + buffer.remaining());
+        m_byteBuffer.position(m_position);
+        m_position += buffer.remaining();
+        m_byteBuffer.put(buffer);
+    }
+
     public void writeByte(byte value) {
-        m_buffer[m_position++] = value;
+        ensureCapacity(m_position + 1);
+        m_byteBuffer.put(m_position++, value);
     }
 
     public void writeShort(short value) {
@@ -137,7 +215,8 @@ public class NetworkStream {
     }
 
     public void writeUnsignedByte(int value) {
-        m_buffer[m_position++] = (byte)value;
+        ensureCapacity(m_position + 1);
+        m_byteBuffer.put(m_position++, (byte)value);
     }
 
     public void writeUnsignedShort(int value) {
@@ -171,12 +250,13 @@ public class NetworkStream {
     }
 
     public void readArray(byte array[], int offset, int length) {
-        System.arraycopy(m_buffer, m_position, array, offset, length);
+        m_byteBuffer.position(m_position);
+        m_byteBuffer.get(array, offset, length);
         m_position += length;
     }
 
     public byte readByte() {
-        return m_buffer[m_position++];
+        return m_byteBuffer.get(m_position++);
     }
 
     public short readShort() {
@@ -184,7 +264,7 @@ public class NetworkStream {
     }
 
     public int readUnsignedByte() {
-        return m_buffer[m_position++] & 0xFF;
+        return m_byteBuffer.get(m_position++) & 0xFF;
     }
 
     public int readUnsignedShort() {
@@ -195,26 +275,27 @@ public class NetworkStream {
         return (readUnsignedByte() << 24) | (readUnsignedByte() << 16) | (readUnsignedByte() << 8) | readUnsignedByte();
     }
 
-    public String readString() {
+    private byte[] readTerminated() {
         int length = 0;
-        while(m_buffer[m_position + length] != '\0')
+        while(m_byteBuffer.get(m_position + length) != '\0')
             length++;
-        String ret;
-        ret = new String(m_buffer, m_position, length);
-        m_position += length + 1;
-        return ret;
+        byte data[] = new byte[length];
+        readArray(data, 0, length);
+        m_position++;
+        return data;
+    }
+
+    public String readString() {
+        return new String(readTerminated());
     }
 
     public String readUnicodeString() {
-        int length = 0;
-        while(m_buffer[m_position + length] != '\0')
-            length++;
+        byte data[] = readTerminated();
         String ret = "";
         try {
-            ret = new String(m_buffer, m_position, length, "UTF8");
+            ret = new String(data, "UTF8");
         } catch (Exception e) {
         }
-        m_position += length + 1;
         return ret;
     }
 
@@ -227,96 +308,136 @@ public class NetworkStream {
     }
 
     public void decryptRSA(int length) {
-        byte newData[] = Crypto.decryptRSA(m_buffer, 0, length);
-        System.arraycopy(newData, 0, m_buffer, 0, newData.length);
+        byte data[] = new byte[length];
+        m_byteBuffer.position(0);
+        m_byteBuffer.get(data);
+        byte newData[] = Crypto.decryptRSA(data, 0, length);
+        m_byteBuffer.position(0);
+        m_byteBuffer.put(newData);
     }
 
     public void decryptXTEA(int length, int keys[]) {
-        byte newData[] = Crypto.decryptXTEA(m_buffer, m_position, length, keys);
-        System.arraycopy(newData, 0, m_buffer, m_position, newData.length);
+        Crypto.decryptXTEAInPlace(m_byteBuffer, m_position, length, keys);
     }
 
     public int readData(NetworkStream stream) {
         int length = readUnsignedShort();
+        m_byteBuffer.limit(m_position + length);
+        m_byteBuffer.position(m_position);
         stream.seek(0);
-        stream.writeArray(m_buffer, m_position, length);
+        stream.writeBuffer(m_byteBuffer);
         stream.seek(0);
+        m_byteBuffer.clear();
         m_position += length;
         return length;
     }
 
-    public int readPacket(NetworkStream stream) {
-        int available = m_position;
-        seek(0);
+    public int readPacket(PacketQueue queue) {
+        int offset = m_readPosition;
+        int available = m_position - offset;
 
-        if (available < 1) {
-            m_position = available;
+        if (available < 1)
             return 0;
-        }
 
-        int length = readUnsignedByte();
+        int length = m_byteBuffer.get(offset) & 0xFF;
+        int lengthSize = 1;
 
         if (length >= 160) {
-            if (available < 2) {
-                m_position = available;
+            if (available < 2)
                 return 0;
-            }
-            length = 256 * length - (40960 - readUnsignedByte());
+            length = 256 * length - (40960 - (m_byteBuffer.get(offset + 1) & 0xFF));
+            lengthSize = 2;
         }
 
-        int lengthSize = m_position;
-
-        if ((available - lengthSize) < length) {
-            m_position = available;
+        if ((available - lengthSize) < length)
             return 0;
-        }
 
-        byte data[] = stream.getByteArray();
-        if (length < 160) {
-            stream.seek(0);
-            System.arraycopy(m_buffer, m_position + 1, data, 0, length - 1);
-            data[length - 1] = m_buffer[m_position];
-        } else {
-            stream.seek(0);
-            System.arraycopy(m_buffer, m_position, data, 0, length);
+        // Packet queue is full, leave the packet buffered
+        if (!queue.startPacket(length))
+            return -1;
+
+        int start = offset + lengthSize;
+        if (length >= 160) {
+            queue.writeBuffer(m_byteBuffer, start, length);
+        } else if (length > 0) {
+            queue.writeBuffer(m_byteBuffer, start + 1, length - 1);
+            queue.writeByte(m_byteBuffer.get(start));
         }
+        queue.endPacket();
 
-        int packetSize = length + lengthSize;
-        m_position = available - packetSize;
-        System.arraycopy(m_buffer, packetSize, m_buffer, 0, m_position);
+        // Everything has been framed, start over without moving any data
+        m_readPosition = start + length;
+        if (m_readPosition == m_position) {
+            m_readPosition = 0;
+            m_position = 0;
+        }
 
         return length;
     }
 
-    public void fill(SocketChannel socket) {
-        m_byteBuffer.limit(5000);
+    public int fill(SocketChannel socket) {
+        if (m_byteBuffer == null)
+            m_byteBuffer = m_pool.lease();
+
+        // Only move a partial packet back to the start once it reaches the end of the buffer
+        if (m_position == m_byteBuffer.capacity() && m_readPosition > 0) {
+            m_byteBuffer.limit(m_position);
+            m_byteBuffer.position(m_readPosition);
+            m_byteBuffer.compact();
+            m_position -= m_readPosition;
+            m_readPosition = 0;
+        }
+
         m_byteBuffer.position(m_position);
+        int length;
         try {
-            socket.read(m_byteBuffer);
+            length = socket.read(m_byteBuffer);
         } catch (Exception e) {
+            length = -1;
         }
         m_position = m_byteBuffer.position();
+        return length;
+    }
+
+    public boolean isFull() {
+        return m_byteBuffer != null && m_readPosition == 0 && m_position == m_byteBuffer.capacity();
     }
 
-    public void flush(SocketChannel socket) {
+    public int write(SocketChannel socket) throws IOException {
+        // Non-blocking sockets may take part of the stream, the rest is kept at the front for the next write
+        m_byteBuffer.limit(m_position);
+        m_byteBuffer.position(0);
+        int length = socket.write(m_byteBuffer);
+        m_byteBuffer.compact();
+        m_position = m_byteBuffer.position();
+        m_byteBuffer.clear();
+        return length;
+    }
+
+    public int flush(SocketChannel socket) {
         if (m_position == 0)
-            return;
+            return 0;
 
+        int length = 0;
         try {
-            m_byteBuffer.limit(5000);
-            m_byteBuffer.position(m_position);
-            m_byteBuffer.flip();
-            int length = socket.write(m_byteBuffer);
+            m_byteBuffer.limit(m_position);
+            m_byteBuffer.position(0);
+            length = socket.write(m_byteBuffer);
             m_position = 0;
         } catch (Exception e) {
         }
+        m_byteBuffer.clear();
+        return length;
     }
 
     public void dump(String fname) {
         File f = new File(fname);
         try {
             DataOutputStream out = new DataOutputStream(new FileOutputStream(f));
-            out.write(m_buffer, 0, m_position);
+            byte data[] = new byte[m_position];
+            m_byteBuffer.position(0);
+            m_byteBuffer.get(data);
+            out.write(data);
             out.close();
         } catch (Exception e) {
         }
@@ -0,0 +1,141 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.game;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Bytes the socket would not accept yet, kept in a chain of pooled segments until the next
+ * writable event. Each segment is kept ready for writing, position is the next byte to send and
+ * limit is the end of the queued data.
+ */
+public class OutboundQueue {
+    private BufferPool m_pool;
+    private ArrayDeque<ByteBuffer> m_segments;
+    private ByteBuffer m_gather[];
+    private int m_queuedBytes;
+
+    // Clients that fall this far behind are disconnected
+    public static final int MAX_QUEUED_BYTES = 512 * 1024;
+
+    public OutboundQueue(BufferPool pool) {
+        m_pool = pool;
+        m_segments = new ArrayDeque<ByteBuffer>();
+        m_gather = new ByteBuffer[8];
+        m_queuedBytes = 0;
+    }
+
+    public int getQueuedBytes() {
+        return m_queuedBytes;
+    }
+
+    public boolean isEmpty() {
+        return m_queuedBytes == 0;
+    }
+
+    public void clear() {
+        ByteBuffer segment;
+        while ((segment = m_segments.pollFirst()) != null)
+            m_pool.release(segment);
+        m_queuedBytes = 0;
+    }
+
+    public void add(ByteBuffer data) {
+        int length = data.remaining();
+        m_queuedBytes += length;
+        while (length > 0) {
+            ByteBuffer segment = m_segments.peekLast();
+            if (segment == null || segment.limit() == segment.capacity()) {
+                segment = m_pool.lease();
+                segment.limit(0);
+                m_segments.addLast(segment);
+            }
+
+            int start = segment.position();
+            int end = segment.limit();
+            int size = Math.min(length, segment.capacity() - end);
+            int dataLimit = data.limit();
+            data.limit(data.position() + size);
+            segment.limit(end + size);
+            segment.position(end);
+            segment.put(data);
+            segment.position(start);
+            data.limit(dataLimit);
+            length -= size;
+        }
+    }
+
+    private void releaseWritten() {
+        ByteBuffer segment;
+        while ((segment = m_segments.peekFirst()) != null && !segment.hasRemaining())
+            m_pool.release(m_segments.pollFirst());
+    }
+
+    public int write(SocketChannel socket) throws IOException {
+        return write(socket, null);
+    }
+
+    public int write(SocketChannel socket, NetworkStream stream) throws IOException {
+        ByteBuffer buffer = null;
+        if (stream != null && stream.getPosition() > 0) {
+            buffer = stream.getByteBuffer();
+            buffer.limit(stream.getPosition());
+            buffer.position(0);
+        }
+
+        // Send queued segments and this tick's packets in one gathering write, queued data first
+        int count = m_segments.size();
+        if (count + 1 > m_gather.length)
+            m_gather = new ByteBuffer[count + 1];
+        m_segments.toArray(m_gather);
+        if (buffer != null)
+            m_gather[count++] = buffer;
+
+        int written = 0;
+        try {
+            if (count > 0)
+                written = (int)socket.write(m_gather, 0, count);
+        } catch (IOException e) {
+            if (buffer != null) {
+                buffer.clear();
+                stream.flip();
+            }
+            throw e;
+        } finally {
+            for (int i = 0; i < count; i++)
+                m_gather[i] = null;
+        }
+
+        m_queuedBytes -= Math.min(written, m_queuedBytes);
+        releaseWritten();
+
+        // Socket buffer is full, keep the rest for the next writable event
+        if (buffer != null) {
+            if (buffer.hasRemaining())
+                add(buffer);
+            buffer.clear();
+            stream.flip();
+        }
+        return written;
+    }
+}
@@ -23,9 +23,9 @@ import rscminus.common.ISAACCipher;
 import rscminus.common.JGameData;
 import rscminus.game.constants.Game;
 import rscminus.game.data.SaveInfo;
-import rscminus.game.entity.GameObject;
 import rscminus.game.entity.Player;
-import rscminus.game.entity.WallObject;
+
+import java.nio.ByteBuffer;
 
 public class PacketBuilder {
     public static final int OPCODE_QUEST_STATUS = 5;
@@ -62,9 +62,6 @@ public class PacketBuilder {
     public static final int OPCODE_UPDATE_IGNORE = 237;
     public static final int OPCODE_GAME_SETTINGS = 240;
 
-    private static int m_offset = 0;
-    private static int m_count = 0;
-
     public static void questStatus(boolean questComplete[], NetworkStream stream, ISAACCipher isaacCipher) {
         stream.startPacket();
         stream.writeOpcode(OPCODE_QUEST_STATUS, isaacCipher);
@@ -140,10 +137,19 @@ public class PacketBuilder {
         stream.writeOpcode(OPCODE_OBJECT_HANDLER, isaacCipher);
     }
 
-    public static void addObjectUpdate(Player player, GameObject obj, NetworkStream stream, ISAACCipher isaacCipher) {
-        int x = obj.getX() - player.getX();
-        int y = obj.getY() - player.getY();
-        stream.writeUnsignedShort(obj.getID());
+    public static void addObjectUpdate(Player player, int id, int objX, int objY, NetworkStream stream) {
+        int x = objX - player.getX();
+        int y = objY - player.getY();
+        stream.writeUnsignedShort(id);
+        stream.writeByte((byte)x);
+        stream.writeByte((byte)y);
+    }
+
+    public static void addAreaRemoval(Player player, int areaX, int areaY, NetworkStream stream) {
+        // The client removes everything in the 8x8 area containing this tile
+        int x = (areaX << 3) - player.getX();
+        int y = (areaY << 3) - player.getY();
+        stream.writeUnsignedByte(255);
         stream.writeByte((byte)x);
         stream.writeByte((byte)y);
     }
@@ -157,13 +163,13 @@ public class PacketBuilder {
         stream.writeOpcode(OPCODE_WALLOBJECT_HANDLER, isaacCipher);
     }
 
-    public static void addWallObjectUpdate(Player player, WallObject obj, NetworkStream stream, ISAACCipher isaacCipher) {
-        int x = obj.getX() - player.getX();
-        int y = obj.getY() - player.getY();
-        stream.writeUnsignedShort(obj.getID());
+    public static void addWallObjectUpdate(Player player, int id, int objX, int objY, int direction, NetworkStream stream) {
+        int x = objX - player.getX();
+        int y = objY - player.getY();
+        stream.writeUnsignedShort(id);
         stream.writeByte((byte)x);
         stream.writeByte((byte)y);
-        stream.writeByte((byte)obj.getDirection());
+        stream.writeByte((byte)direction);
     }
 
     public static void endWallObjectUpdate(NetworkStream stream) {
@@ -264,15 +270,14 @@ public class PacketBuilder {
         stream.writeBitmask(11, player.getX()); // Local region X
         stream.writeBitmask(13, player.getY()); // Local region Y
         stream.writeBitmask(4, player.getDirection()); // Anim
-        m_offset = stream.getBitPosition();
+        stream.startCount(stream.getBitPosition());
         stream.writeBitmask(8, 0); // Players
-        m_count = 0;
     }
 
     public static void endCreatePlayers(NetworkStream stream) {
         int endPosition = stream.getBitPosition();
-        stream.setBitPosition(m_offset);
-        stream.writeBitmask(8, m_count);
+        stream.setBitPosition(stream.getCountOffset());
+        stream.writeBitmask(8, stream.getCount());
         stream.setBitPosition(endPosition);
         stream.endBitmask();
         stream.endPacket();
@@ -305,12 +310,22 @@ public class PacketBuilder {
     public static void startPlayerUpdate(NetworkStream stream, ISAACCipher isaacCipher) {
         stream.startPacket();
         stream.writeOpcode(OPCODE_UPDATE_PLAYERS, isaacCipher);
-        m_offset = stream.getPosition();
+        stream.startCount(stream.getPosition());
         stream.writeUnsignedShort(0); // Player count
-        m_count = 0;
     }
 
     public static void addPlayerUpdateAppearance(Player player, NetworkStream stream) {
+        writePlayerUpdateAppearance(player, stream);
+        stream.incrementCount();
+    }
+
+    public static void addPlayerUpdateBlock(NetworkStream block, NetworkStream stream) {
+        ByteBuffer buffer = block.getByteBuffer();
+        stream.writeArray(buffer.array(), buffer.arrayOffset(), block.getPosition());
+        stream.incrementCount();
+    }
+
+    public static void writePlayerUpdateAppearance(Player player, NetworkStream stream) {
         SaveInfo saveInfo = player.getSaveInfo();
         stream.writeUnsignedShort(player.getIndex()); // Index
         stream.writeUnsignedByte(5); // Update type
@@ -327,14 +342,13 @@ public class PacketBuilder {
         stream.writeUnsignedByte(saveInfo.skinColor); // Skin color
         stream.writeUnsignedByte(3); // Level
         stream.writeUnsignedByte(0); // Skull
-        m_count++;
     }
 
     public static void endPlayerUpdate(NetworkStream stream) {
         stream.endPacket();
         int endPosition = stream.getPosition();
-        stream.setPosition(m_offset);
-        stream.writeUnsignedShort(m_count);
+        stream.setPosition(stream.getCountOffset());
+        stream.writeUnsignedShort(stream.getCount());
         stream.setPosition(endPosition);
     }
 
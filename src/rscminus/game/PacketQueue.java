@@ -0,0 +1,142 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.game;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Single-producer/single-consumer ring of framed packets. A network reader thread frames packets
+ * into the queue and the game thread reads them in place during the tick. Each packet is stored
+ * as a two byte length followed by its payload, and is never split across the end of the ring so
+ * it can be read straight out of the buffer.
+ */
+public class PacketQueue {
+    private byte m_buffer[];
+    private NetworkStream m_stream;
+    private int m_capacity;
+    private int m_mask;
+    private int m_writePosition;
+    private int m_readPosition;
+
+    // Written by the producer, read by the consumer
+    private volatile int m_head;
+
+    // Written by the consumer, read by the producer
+    private volatile int m_tail;
+
+    // At least twice the largest framed packet, so a packet always fits once the queue is drained
+    public static final int DEFAULT_CAPACITY = 16384;
+
+    // Length marking the rest of the ring as unused
+    private static final int WRAP_MARKER = 0xFFFF;
+
+    public PacketQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PacketQueue(int capacity) {
+        m_capacity = Integer.highestOneBit(capacity - 1) << 1;
+        m_mask = m_capacity - 1;
+        m_head = 0;
+        m_tail = 0;
+        m_readPosition = 0;
+    }
+
+    public void clear() {
+        // Idle slots don't hold a ring, the next connection allocates its own
+        m_buffer = null;
+        m_stream = null;
+        m_head = 0;
+        m_tail = 0;
+        m_readPosition = 0;
+    }
+
+    public boolean isEmpty() {
+        return m_head == m_readPosition;
+    }
+
+    public NetworkStream getStream() {
+        return m_stream;
+    }
+
+    public boolean startPacket(int length) {
+        int head = m_head;
+        int start = head & m_mask;
+        int size = length + 2;
+        int skip = (m_capacity - start < size) ? m_capacity - start : 0;
+        if (skip + size > m_capacity - (head - m_tail))
+            return false;
+
+        // Buffers are only allocated once a connection actually sends something
+        if (m_buffer == null) {
+            m_buffer = new byte[m_capacity];
+            m_stream = new NetworkStream(ByteBuffer.wrap(m_buffer));
+        }
+
+        // Packet doesn't fit before the end of the ring, continue at the start
+        if (skip >= 2) {
+            m_buffer[start] = (byte)(WRAP_MARKER >> 8);
+            m_buffer[start + 1] = (byte)WRAP_MARKER;
+        }
+
+        m_writePosition = head + skip;
+        writeByte((byte)(length >> 8));
+        writeByte((byte)length);
+        return true;
+    }
+
+    public void writeByte(byte value) {
+        m_buffer[m_writePosition++ & m_mask] = value;
+    }
+
+    public void writeArray(byte array[], int offset, int length) {
+        System.arraycopy(array, offset, m_buffer, m_writePosition & m_mask, length);
+        m_writePosition += length;
+    }
+
+    public void writeBuffer(ByteBuffer buffer, int offset, int length) {
+        buffer.position(offset);
+        buffer.get(m_buffer, m_writePosition & m_mask, length);
+        m_writePosition += length;
+    }
+
+    public void endPacket() {
+        m_head = m_writePosition;
+    }
+
+    public int poll() {
+        // The previous packet has been handled, hand its space back to the producer
+        int position = m_readPosition;
+        m_tail = position;
+        if (position == m_head)
+            return 0;
+
+        int start = position & m_mask;
+        if (m_capacity - start < 2 || (((m_buffer[start] & 0xFF) << 8) | (m_buffer[start + 1] & 0xFF)) == WRAP_MARKER) {
+            position += m_capacity - start;
+            start = 0;
+        }
+
+        int length = ((m_buffer[start] & 0xFF) << 8) | (m_buffer[start + 1] & 0xFF);
+        m_stream.seek(start + 2);
+        m_readPosition = position + 2 + length;
+        return length;
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.game;
+
+import rscminus.game.entity.player.WalkingQueue;
+import rscminus.game.world.Pathfinder;
+
+import java.util.Arrays;
+
+/**
+ * Routes walk requests over the collision grid. Each thread searches with its own Pathfinder. The
+ * fields of recent searches are cached by destination tile, so players heading to a popular tile
+ * walk a route back from wherever they stand instead of searching again. The cache has a fixed
+ * number of slots with preallocated field storage, and the least recently used slot is replaced
+ * on a miss. A door changing the collision grid drops every slot whose window contains it.
+ */
+public class PathManager {
+    private ThreadLocal<Pathfinder> m_pathfinders;
+    private int m_keys[];
+    private long m_lastUsed[];
+    private byte m_fields[];
+    private long m_clock;
+    private int m_invalidations;
+    private long m_cacheHits;
+    private long m_cacheMisses;
+
+    // Constants
+    public static final int CACHE_SIZE = 128;
+    public static final int NONE = -1;
+
+    public PathManager() {
+        m_pathfinders = ThreadLocal.withInitial(Pathfinder::new);
+        m_keys = new int[CACHE_SIZE];
+        m_lastUsed = new long[CACHE_SIZE];
+        m_fields = new byte[CACHE_SIZE * Pathfinder.FIELD_SIZE];
+        Arrays.fill(m_keys, NONE);
+    }
+
+    public synchronized long getCacheHits() {
+        return m_cacheHits;
+    }
+
+    public synchronized long getCacheMisses() {
+        return m_cacheMisses;
+    }
+
+    private static int getKey(int x, int y) {
+        return (x << 16) | y;
+    }
+
+    private int findSlot(int key) {
+        for (int slot = 0; slot < CACHE_SIZE; slot++) {
+            if (m_keys[slot] == key)
+                return slot;
+        }
+        return NONE;
+    }
+
+    private int findLeastRecentlyUsed() {
+        int oldest = 0;
+        for (int slot = 1; slot < CACHE_SIZE; slot++) {
+            if (m_lastUsed[slot] < m_lastUsed[oldest])
+                oldest = slot;
+        }
+        return oldest;
+    }
+
+    private static void copyPath(Pathfinder pathfinder, WalkingQueue walkingQueue) {
+        walkingQueue.clear();
+        for (int i = 0; i < pathfinder.getPathLength(); i++)
+            walkingQueue.add(pathfinder.getPathX(i), pathfinder.getPathY(i));
+    }
+
+    public boolean findPath(int startX, int startY, int destX, int destY, WalkingQueue walkingQueue) {
+        // Destinations outside the start's component can't be reached, skip the search
+        WorldManager worldManager = Server.getInstance().getWorldManager();
+        if (!Pathfinder.isInWindow(startX, startY, destX, destY) || !worldManager.isReachable(startX, startY, destX, destY))
+            return false;
+
+        Pathfinder pathfinder = m_pathfinders.get();
+        int key = getKey(destX, destY);
+        int invalidations;
+        synchronized (this) {
+            int slot = findSlot(key);
+            if (slot != NONE) {
+                m_cacheHits++;
+                m_lastUsed[slot] = ++m_clock;
+                if (!pathfinder.walk(m_fields, slot * Pathfinder.FIELD_SIZE, startX, startY, destX, destY))
+                    return false;
+                copyPath(pathfinder, walkingQueue);
+                return true;
+            }
+            m_cacheMisses++;
+            invalidations = m_invalidations;
+        }
+
+        pathfinder.search(worldManager, destX, destY);
+
+        // Fields searched before a door changed are stale, they're used once but not cached
+        synchronized (this) {
+            if (invalidations == m_invalidations && findSlot(key) == NONE) {
+                int slot = findLeastRecentlyUsed();
+                m_keys[slot] = key;
+                m_lastUsed[slot] = ++m_clock;
+                System.arraycopy(pathfinder.getField(), 0, m_fields, slot * Pathfinder.FIELD_SIZE, Pathfinder.FIELD_SIZE);
+            }
+        }
+
+        if (!pathfinder.walk(pathfinder.getField(), 0, startX, startY, destX, destY))
+            return false;
+        copyPath(pathfinder, walkingQueue);
+        return true;
+    }
+
+    public synchronized void invalidate(int x, int y) {
+        m_invalidations++;
+        for (int slot = 0; slot < CACHE_SIZE; slot++) {
+            if (m_keys[slot] == NONE)
+                continue;
+            int destX = m_keys[slot] >>> 16;
+            int destY = m_keys[slot] & 0xFFFF;
+            if (Math.abs(x - destX) <= (Pathfinder.SIZE / 2) && Math.abs(y - destY) <= (Pathfinder.SIZE / 2)) {
+                m_keys[slot] = NONE;
+                m_lastUsed[slot] = 0;
+            }
+        }
+    }
+}
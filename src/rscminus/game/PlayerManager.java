@@ -19,19 +19,66 @@
 
 package rscminus.game;
 
+import rscminus.common.Settings;
+import rscminus.common.SocketUtil;
+import rscminus.common.SlotList;
 import rscminus.game.data.LoginInfo;
 import rscminus.game.data.SaveInfo;
 import rscminus.game.entity.Player;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class PlayerManager {
     private Player m_players[];
     private QueuedPlayer m_queue[];
+    private SlotList m_playerSlots;
+    private SlotList m_queueSlots;
+    private HashMap<String, Integer> m_usernames;
     private NetworkStream m_stream;
+    private byte m_updateBlocks[];
     private WorldManager m_worldManager;
+    private ForkJoinPool m_tickPool;
     private int m_size;
 
+    // Phases that only touch the player's own state and may run in parallel
+    private static final int PHASE_UPDATE_BLOCKS = 0;
+    private static final int PHASE_CLIENT_UPDATE = 1;
+    private static final int PHASE_OUTGOING_PACKETS = 2;
+
+    // Bytes reserved per player for their encoded update block
+    public static final int UPDATE_BLOCK_SIZE = 64;
+
+    // Active players processed by a single parallel task
+    private static final int PARALLEL_GRAIN = 16;
+
+    private class PhaseTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private int m_phase;
+        private int m_start;
+        private int m_end;
+
+        PhaseTask(int phase, int start, int end) {
+            m_phase = phase;
+            m_start = start;
+            m_end = end;
+        }
+
+        protected void compute() {
+            if (m_end - m_start <= PARALLEL_GRAIN) {
+                processPhase(m_phase, m_start, m_end);
+                return;
+            }
+            int middle = (m_start + m_end) >>> 1;
+            invokeAll(new PhaseTask(m_phase, m_start, middle), new PhaseTask(m_phase, middle, m_end));
+        }
+    }
+
     public PlayerManager() {
         m_stream = new NetworkStream();
     }
@@ -40,6 +87,10 @@ public class PlayerManager {
         m_size = size;
         m_players = new Player[m_size];
         m_queue = new QueuedPlayer[m_size];
+        m_playerSlots = new SlotList(m_size);
+        m_queueSlots = new SlotList(m_size);
+        m_usernames = new HashMap<String, Integer>();
+        m_updateBlocks = new byte[m_size * UPDATE_BLOCK_SIZE];
 
         m_worldManager = Server.getInstance().getWorldManager();
         for (int i = 0; i < m_size; i++) {
@@ -49,31 +100,84 @@ public class PlayerManager {
             m_players[i].reset();
             m_queue[i].reset();
         }
+
+        if (Settings.serverTickThreads > 0)
+            m_tickPool = new ForkJoinPool(Settings.serverTickThreads);
+    }
+
+    public boolean isParallel() {
+        return m_tickPool != null;
+    }
+
+    public NetworkStream createUpdateBlock(int index) {
+        // Blocks that outgrow their slice move to a buffer of their own
+        ByteBuffer buffer = ByteBuffer.wrap(m_updateBlocks, index * UPDATE_BLOCK_SIZE, UPDATE_BLOCK_SIZE).slice();
+        return new NetworkStream(buffer);
+    }
+
+    public Player getPlayer(int index) {
+        return m_players[index];
+    }
+
+    public int getPlayerCount() {
+        return m_playerSlots.size();
+    }
+
+    private void processPhase(int phase, int start, int end) {
+        for (int i = start; i < end; i++) {
+            Player player = m_players[m_playerSlots.get(i)];
+            switch (phase) {
+            case PHASE_UPDATE_BLOCKS:
+                player.processUpdateBlock();
+                break;
+            case PHASE_CLIENT_UPDATE:
+                player.processClientUpdate();
+                break;
+            case PHASE_OUTGOING_PACKETS:
+                player.processOutgoingPackets();
+                break;
+            }
+        }
+    }
+
+    private void runPhase(int phase) {
+        // invoke() returns once every task is done, so each phase acts as a barrier
+        if (m_tickPool != null)
+            m_tickPool.invoke(new PhaseTask(phase, 0, m_playerSlots.size()));
+        else
+            processPhase(phase, 0, m_playerSlots.size());
     }
 
     public void addQueuedPlayer(SocketChannel socket) {
-        int slot = findFreeQueuedSlot();
+        int admission = Server.getInstance().getAdmissionManager().admit(socket, m_queueSlots.size());
+        int slot = (admission == AdmissionManager.ADMIT) ? findFreeQueuedSlot() : -1;
         if (slot != -1) {
             m_queue[slot].setSocket(socket);
             m_queue[slot].setActive(true);
+            m_queueSlots.add(slot);
             System.out.println("queued slot: " + slot);
             return;
         }
 
-        // Reject login if we have no free slots
+        // Reject login if we have no free slots or the address is connecting too often
+        sendLoginResponse(socket, QueuedPlayer.LOGIN_REJECT);
+        SocketUtil.close(socket);
+    }
+
+    public void sendLoginResponse(SocketChannel socket, int response) {
         m_stream.flip();
-        m_stream.writeUnsignedByte(QueuedPlayer.LOGIN_REJECT);
+        m_stream.writeUnsignedByte(response);
         m_stream.flush(socket);
     }
 
-    public int addPlayer(SocketChannel socket, LoginInfo loginInfo, SaveInfo saveInfo) {
+    public int addPlayer(SocketChannel socket, SelectionKey key, LoginInfo loginInfo, SaveInfo saveInfo) {
         int loggedSlot = findPlayerByUsername(loginInfo.username);
 
         if (loginInfo.reconnecting && loggedSlot != -1) {
             if (m_players[loggedSlot].getSocket() != null)
                 return QueuedPlayer.LOGIN_LOGGED_IN;
             m_players[loggedSlot].setLoginInfo(loginInfo);
-            m_players[loggedSlot].setSocket(socket);
+            m_players[loggedSlot].setSocket(socket, key);
             return QueuedPlayer.LOGIN_SUCCESS;
         }
 
@@ -85,8 +189,11 @@ public class PlayerManager {
             System.out.println("add slot: " + slot);
             m_players[slot].setLoginInfo(loginInfo);
             m_players[slot].setSaveInfo(saveInfo);
-            m_players[slot].setSocket(socket);
+            m_players[slot].setSocket(socket, key);
             m_players[slot].setActive(true);
+            m_playerSlots.add(slot);
+            Server.getInstance().getShardManager().add(m_players[slot]);
+            m_usernames.put(loginInfo.username, slot);
             return QueuedPlayer.LOGIN_SUCCESS;
         }
 
@@ -97,74 +204,80 @@ public class PlayerManager {
         if (m_players[index].isActive()) {
             // TODO: Handle saving
             m_worldManager.removePlayer(m_players[index]);
+            Server.getInstance().getShardManager().remove(m_players[index]);
+            m_usernames.remove(m_players[index].getUsername());
+            m_playerSlots.remove(index);
             m_players[index].reset();
             System.out.println("remove slot: " + index);
         }
     }
 
     public int findPlayerByUsername(String username) {
-        for (int i = 0; i < m_size; i++) {
-            if (m_players[i].isActive() && m_players[i].getUsername().equals(username))
-                return i;
-        }
-        return -1;
+        Integer slot = m_usernames.get(username);
+        return (slot != null) ? slot : -1;
     }
 
     public int findFreeQueuedSlot() {
-        for (int i = 0; i < m_size; i++) {
-            if (!m_queue[i].isActive())
-                return i;
-        }
-        return -1;
+        return m_queueSlots.findFree();
     }
 
     public int findFreeSlot() {
-        for (int i = 0; i < m_size; i++) {
-            if (!m_players[i].isActive())
-                return i;
-        }
-        return -1;
+        return m_playerSlots.findFree();
     }
 
     public void processLoginQueue() {
-        for (int i = 0; i < m_size; i++) {
-            if (m_queue[i].isActive())
-                m_queue[i].process();
+        // Admit logins the login workers have finished decoding, up to the per tick limit
+        LoginManager loginManager = Server.getInstance().getLoginManager();
+        QueuedPlayer queuedPlayer;
+        int admitted = 0;
+        while ((Settings.serverLoginsPerTick <= 0 || admitted < Settings.serverLoginsPerTick) && (queuedPlayer = loginManager.poll()) != null) {
+            queuedPlayer.finishLogin();
+            admitted++;
+        }
+
+        // Iterate backwards so finished logins can be removed in place
+        for (int i = m_queueSlots.size() - 1; i >= 0; i--) {
+            int slot = m_queueSlots.get(i);
+            if (m_queue[slot].isActive())
+                m_queue[slot].process();
+            if (!m_queue[slot].isActive())
+                m_queueSlots.remove(slot);
         }
     }
 
     public void processIncomingPackets() {
-        for (int i = 0; i < m_size; i++) {
-            if (m_players[i].isActive())
-                m_players[i].processIncomingPackets();
-        }
+        for (int i = 0; i < m_playerSlots.size(); i++)
+            m_players[m_playerSlots.get(i)].processIncomingPackets();
     }
 
     public void processOutgoingPackets() {
-        for (int i = 0; i < m_size; i++) {
-            if (m_players[i].isActive())
-                m_players[i].processOutgoingPackets();
-        }
+        runPhase(PHASE_OUTGOING_PACKETS);
+
+        // Removing players touches the world, so it stays on the game thread. Iterate backwards so
+        // removed players can be taken out of the active list in place.
+        for (int i = m_playerSlots.size() - 1; i >= 0; i--)
+            m_players[m_playerSlots.get(i)].processLogout();
     }
 
     public void process() {
-        for (int i = 0; i < m_size; i++) {
-            if (m_players[i].isActive())
-                m_players[i].process();
+        // Parallel ticks process each shard of the world on its own worker
+        if (m_tickPool != null) {
+            Server.getInstance().getShardManager().process(m_tickPool);
+            return;
         }
+
+        for (int i = 0; i < m_playerSlots.size(); i++)
+            m_players[m_playerSlots.get(i)].process();
     }
 
     public void processClientUpdate() {
-        for (int i = 0; i < m_size; i++) {
-            if (m_players[i].isActive())
-                m_players[i].processClientUpdate();
-        }
+        // Update blocks are encoded once and copied to every observer
+        runPhase(PHASE_UPDATE_BLOCKS);
+        runPhase(PHASE_CLIENT_UPDATE);
     }
 
     public void processDisconnect() {
-        for (int i = 0; i < m_size; i++) {
-            if (m_players[i].isActive())
-                m_players[i].processDisconnect();
-        }
+        for (int i = 0; i < m_playerSlots.size(); i++)
+            m_players[m_playerSlots.get(i)].processDisconnect();
     }
 }
@@ -19,18 +19,28 @@
 
 package rscminus.game;
 
+import rscminus.common.Crypto;
+import rscminus.common.Settings;
 import rscminus.common.SocketUtil;
 import rscminus.game.data.LoginInfo;
 import rscminus.game.data.SaveInfo;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 
-public class QueuedPlayer {
+public class QueuedPlayer implements NetworkHandler {
     private boolean m_active;
     private SocketChannel m_socket;
+    private volatile SelectionKey m_selectionKey;
     private NetworkStream m_stream;
-    private NetworkStream m_packetStream;
+    private PacketQueue m_packetQueue;
     private PlayerManager m_playerManager;
+    private volatile boolean m_decoding;
+    private long m_deadline;
+    private LoginInfo m_loginInfo;
+    private SaveInfo m_saveInfo;
+    private int m_loginResponse;
 
     // Login response constants
     public static final int LOGIN_ACCOUNT_INVALID = 3;
@@ -42,17 +52,24 @@ public class QueuedPlayer {
 
     public QueuedPlayer() {
         m_playerManager = Server.getInstance().getPlayerManager();
-        m_stream = new NetworkStream();
-        m_packetStream = new NetworkStream();
+        BufferPool bufferPool = Server.getInstance().getNetworkManager().getBufferPool();
+        m_stream = new NetworkStream(bufferPool);
+        m_packetQueue = new PacketQueue();
         m_active = false;
         m_socket = null;
     }
 
     public void reset() {
-        m_stream.flip();
-        m_packetStream.flip();
+        synchronized (m_stream) {
+            m_stream.release();
+            m_packetQueue.clear();
+        }
         m_active = false;
+        m_decoding = false;
+        m_loginInfo = null;
+        m_saveInfo = null;
         m_socket = null;
+        m_selectionKey = null;
     }
 
     public boolean isActive() {
@@ -61,6 +78,12 @@ public class QueuedPlayer {
 
     public void setSocket(SocketChannel socket) {
         m_socket = socket;
+        m_deadline = System.nanoTime() + Settings.serverHandshakeTimeout * 1000000L;
+        Server.getInstance().getNetworkManager().register(m_socket, this);
+    }
+
+    public void setSelectionKey(SelectionKey key) {
+        m_selectionKey = key;
     }
 
     public void setActive(boolean active) {
@@ -68,37 +91,42 @@ public class QueuedPlayer {
     }
 
     private int handleLogin(LoginInfo loginInfo, SaveInfo saveInfo) {
-        int opcode = m_packetStream.readUnsignedByte();
+        NetworkStream packetStream = m_packetQueue.getStream();
+        int opcode = packetStream.readUnsignedByte();
         if (opcode != 0)
             return LOGIN_REJECT;
 
         // Handle login packet
-        loginInfo.reconnecting = (m_packetStream.readUnsignedByte() == 1);
-        int version = m_packetStream.readUnsignedInt();
+        loginInfo.reconnecting = (packetStream.readUnsignedByte() == 1);
+        int version = packetStream.readUnsignedInt();
 
         if (version != 235)
             return LOGIN_UPDATE;
 
         // Decrypt login block
-        int length = m_packetStream.readData(m_stream);
-        m_stream.decryptRSA(length);
+        // Decrypted straight out of the packet queue's heap buffer
+        int length = packetStream.readUnsignedShort();
+        ByteBuffer buffer = packetStream.getByteBuffer();
+        byte block[] = Crypto.decryptRSA(buffer.array(), buffer.arrayOffset() + packetStream.getPosition(), length);
+        NetworkStream loginStream = new NetworkStream(ByteBuffer.wrap(block));
+        packetStream.skip(length);
 
         // Handle login block
-        opcode = m_stream.readUnsignedByte();
+        opcode = loginStream.readUnsignedByte();
         if (opcode != 10)
             return LOGIN_REJECT;
-        loginInfo.keys[0] = m_stream.readUnsignedInt();
-        loginInfo.keys[1] = m_stream.readUnsignedInt();
-        loginInfo.keys[2] = m_stream.readUnsignedInt();
-        loginInfo.keys[3] = m_stream.readUnsignedInt();
-        String password = m_stream.readUnicodeString().trim();
+        loginInfo.keys[0] = loginStream.readUnsignedInt();
+        loginInfo.keys[1] = loginStream.readUnsignedInt();
+        loginInfo.keys[2] = loginStream.readUnsignedInt();
+        loginInfo.keys[3] = loginStream.readUnsignedInt();
+        String password = loginStream.readUnicodeString().trim();
         // Decrypt XTEA block
-        length = m_packetStream.readUnsignedShort();
-        m_packetStream.decryptXTEA(length, loginInfo.keys);
+        length = packetStream.readUnsignedShort();
+        packetStream.decryptXTEA(length, loginInfo.keys);
 
         // Handle XTEA block
-        m_packetStream.skip(25);
-        String username = m_packetStream.readUnicodeString();
+        packetStream.skip(25);
+        String username = packetStream.readUnicodeString();
 
         // TODO: We would check and grab account information here
         loginInfo.username = username;
@@ -106,30 +134,77 @@ public class QueuedPlayer {
         return LOGIN_SUCCESS;
     }
 
+    public void handleRead(SelectionKey key) {
+        SocketChannel socket = (SocketChannel)key.channel();
+        synchronized (m_stream) {
+            int length = m_stream.fill(socket);
+            if (length > 0)
+                Server.getInstance().getMetricsManager().addBytesIn(length);
+            int result = m_stream.readPacket(m_packetQueue);
+
+            // Connection was closed before logging in or sent more than a login packet
+            if (length < 0 || result < 0 || (result == 0 && m_stream.isFull()))
+                SocketUtil.close(socket);
+        }
+    }
+
+    public void handleWrite(SelectionKey key) {
+    }
+
     public void process() {
-        m_stream.fill(m_socket);
+        // Login is being decoded by a login worker
+        if (m_decoding)
+            return;
 
-        // TODO: Handle timeout
+        // Connection was closed by the network reader
+        if (!m_socket.isOpen()) {
+            reset();
+            return;
+        }
 
-        if (m_stream.readPacket(m_packetStream) == 0)
+        if (m_packetQueue.poll() == 0) {
+            // Drop connections that haven't sent a login packet in time
+            if (System.nanoTime() - m_deadline > 0) {
+                Server.getInstance().getAdmissionManager().recordTimeout();
+                SocketUtil.close(m_socket);
+                reset();
+            }
+            return;
+        }
+
+        m_decoding = true;
+        Server.getInstance().getLoginManager().submit(this);
+    }
+
+    public void decodeLogin() {
+        m_loginInfo = new LoginInfo();
+        m_saveInfo = new SaveInfo();
+        try {
+            m_loginResponse = handleLogin(m_loginInfo, m_saveInfo);
+        } catch (Exception e) {
+            m_loginResponse = LOGIN_REJECT;
+        }
+    }
+
+    public void finishLogin() {
+        // Connection was closed while decoding
+        if (!m_socket.isOpen()) {
+            reset();
             return;
+        }
 
-        LoginInfo loginInfo = new LoginInfo();
-        SaveInfo saveInfo = new SaveInfo();
-        int loginResponse = handleLogin(loginInfo, saveInfo);
+        int loginResponse = m_loginResponse;
 
         // Successful login
         if (loginResponse == LOGIN_SUCCESS) {
-            loginResponse = m_playerManager.addPlayer(m_socket, loginInfo, saveInfo);
+            loginResponse = m_playerManager.addPlayer(m_socket, m_selectionKey, m_loginInfo, m_saveInfo);
 
             // TODO: Add mod priviledges
             if (loginResponse == LOGIN_SUCCESS) {
             }
         }
 
-        m_stream.flip();
-        m_stream.writeUnsignedByte(loginResponse);
-        m_stream.flush(m_socket);
+        m_playerManager.sendLoginResponse(m_socket, loginResponse);
 
         // Session denied, close the socket
         if ((loginResponse & LOGIN_SUCCESS) == 0)
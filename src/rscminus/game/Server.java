@@ -21,53 +21,87 @@ package rscminus.game;
 
 import rscminus.common.Crypto;
 import rscminus.common.JGameData;
-import rscminus.common.Sleep;
+import rscminus.common.Settings;
 
 import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.Iterator;
 
 public class Server implements Runnable {
     private static Server m_instance;
     private static Thread m_thread;
 
     private ServerSocketChannel m_socket;
+    private Selector m_selector;
     private boolean m_running;
     private String m_name;
     private WorldManager m_worldManager;
     private PlayerManager m_playerManager;
+    private NetworkManager m_networkManager;
+    private LoginManager m_loginManager;
+    private ShardManager m_shardManager;
+    private PathManager m_pathManager;
+    private AdmissionManager m_admissionManager;
     private TickManager m_tickManager;
+    private MetricsManager m_metricsManager;
+    private long m_tickTimeTotal;
+    private long m_tickTimeMax;
+    private int m_tickTimeCount;
 
     // Constants
     public static final int DEFAULT_PORT = 43594;
     public static final int DEFAULT_PLAYER_MAX = 5000;
     public static final int DEFAULT_TICK_RATE = 650;
+    public static final int DEFAULT_METRICS_PORT = 43595;
     public static final String DEFAULT_SERVER_NAME = "RuneScape";
+    public static final int TICK_REPORT_INTERVAL = 100;
 
     public Server() {
         m_running = true;
         m_worldManager = new WorldManager();
         m_playerManager = new PlayerManager();
+        m_networkManager = new NetworkManager();
+        m_loginManager = new LoginManager();
+        m_shardManager = new ShardManager();
+        m_pathManager = new PathManager();
+        m_admissionManager = new AdmissionManager();
         m_tickManager = new TickManager();
+        m_metricsManager = new MetricsManager();
     }
 
     public void run() {
         // Initialize rscminus
         Crypto.init();
-        JGameData.init(true);
+
+        // A current world image replaces the landscape in the game data
+        WorldImage worldImage = WorldImage.open(WorldImage.DEFAULT_FILE);
+        JGameData.init(true, worldImage == null);
         System.out.println("exponent: " + Crypto.getPublicExponent());
         System.out.println("modulus: " + Crypto.getPublicModulus());
+        System.out.println("key size: " + Crypto.getKeySize());
 
         // Initialize server
         m_name = DEFAULT_SERVER_NAME;
-        m_worldManager.init();
+        m_worldManager.init(worldImage);
+        m_shardManager.init(Settings.serverShardSize, DEFAULT_PLAYER_MAX);
         m_playerManager.init(DEFAULT_PLAYER_MAX);
+        if (!m_networkManager.init(Settings.serverNetworkThreads))
+            m_running = false;
+        m_loginManager.init(Settings.serverLoginThreads);
+        if (Settings.serverMetricsPort > 0)
+            m_metricsManager.start(Settings.serverMetricsPort);
         m_tickManager.setTickRate(DEFAULT_TICK_RATE);
+        m_tickManager.setCatchUpPolicy(Settings.serverTickCatchUp);
 
         try {
+            m_selector = Selector.open();
             m_socket = ServerSocketChannel.open();
             m_socket.bind(new InetSocketAddress(DEFAULT_PORT));
             m_socket.configureBlocking(false);
+            m_socket.register(m_selector, SelectionKey.OP_ACCEPT);
         } catch (Exception e) {
             m_running = false;
             e.printStackTrace();
@@ -77,48 +111,141 @@ public class Server implements Runnable {
 
         m_tickManager.reset();
         while (m_running) {
+            // Wait for socket readiness or the next tick, whichever comes first
             try {
-                SocketChannel socket = m_socket.accept();
-                if (socket != null) {
-                    socket.configureBlocking(false);
-                    m_playerManager.addQueuedPlayer(socket);
-                }
+                long timeout = m_tickManager.getTimeRemaining();
+                if (timeout > 0)
+                    m_selector.select(timeout);
+                else
+                    m_selector.selectNow();
+                processSelectedKeys();
             } catch (Exception e) {
                 e.printStackTrace();
             }
 
             long elapsed = m_tickManager.update();
             if (elapsed >= 0) {
+                long tickStart = System.nanoTime();
+                long time = tickStart;
+
                 // Handle players logging in
                 m_playerManager.processLoginQueue();
+                time = m_metricsManager.recordPhase(MetricsManager.PHASE_LOGIN_QUEUE, time);
 
                 // Process players
                 m_playerManager.processIncomingPackets();
+                time = m_metricsManager.recordPhase(MetricsManager.PHASE_INCOMING_PACKETS, time);
                 m_playerManager.process();
+                time = m_metricsManager.recordPhase(MetricsManager.PHASE_PROCESS, time);
 
                 // Process these last
                 m_playerManager.processClientUpdate();
+                time = m_metricsManager.recordPhase(MetricsManager.PHASE_CLIENT_UPDATE, time);
                 m_playerManager.processDisconnect();
+                time = m_metricsManager.recordPhase(MetricsManager.PHASE_DISCONNECT, time);
                 m_playerManager.processOutgoingPackets();
+                time = m_metricsManager.recordPhase(MetricsManager.PHASE_OUTGOING_PACKETS, time);
 
                 // Clear world updates
                 m_worldManager.clearUpdates();
+                time = m_metricsManager.recordPhase(MetricsManager.PHASE_CLEAR_UPDATES, time);
+
+                m_metricsManager.recordTick(time - tickStart);
+                if (Settings.serverTickReport)
+                    reportTickTime(time - tickStart);
             }
-            Sleep.sleep(1);
         }
 
+        m_networkManager.stop();
+        m_loginManager.stop();
+        m_metricsManager.stop();
         try {
             m_socket.close();
+            m_selector.close();
         } catch (Exception e) {
         }
 
         System.out.println("Server exited successfully");
     }
 
+    private void reportTickTime(long time) {
+        m_tickTimeTotal += time;
+        m_tickTimeMax = Math.max(m_tickTimeMax, time);
+        if (++m_tickTimeCount < TICK_REPORT_INTERVAL)
+            return;
+
+        String mode = m_playerManager.isParallel() ? "parallel, " + Settings.serverTickThreads + " threads" : "serial";
+        System.out.println("tick time (" + mode + "): avg " + (m_tickTimeTotal / m_tickTimeCount / 1000) + "us, max " + (m_tickTimeMax / 1000) + "us" +
+                ", late: " + m_tickManager.getLateCount() + ", skipped: " + m_tickManager.getSkipCount());
+        m_tickTimeTotal = 0;
+        m_tickTimeMax = 0;
+        m_tickTimeCount = 0;
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> keys = m_selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+
+            if (!key.isValid())
+                continue;
+
+            if (key.isAcceptable())
+                acceptConnections();
+            else if (key.isWritable())
+                ((NetworkHandler)key.attachment()).handleWrite(key);
+        }
+    }
+
+    private void acceptConnections() {
+        try {
+            SocketChannel socket;
+            while ((socket = m_socket.accept()) != null) {
+                socket.configureBlocking(false);
+                m_playerManager.addQueuedPlayer(socket);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
     public String getName() {
         return m_name;
     }
 
+    public Selector getSelector() {
+        return m_selector;
+    }
+
+    public MetricsManager getMetricsManager() {
+        return m_metricsManager;
+    }
+
+    public TickManager getTickManager() {
+        return m_tickManager;
+    }
+
+    public AdmissionManager getAdmissionManager() {
+        return m_admissionManager;
+    }
+
+    public PathManager getPathManager() {
+        return m_pathManager;
+    }
+
+    public ShardManager getShardManager() {
+        return m_shardManager;
+    }
+
+    public LoginManager getLoginManager() {
+        return m_loginManager;
+    }
+
+    public NetworkManager getNetworkManager() {
+        return m_networkManager;
+    }
+
     public PlayerManager getPlayerManager() {
         return m_playerManager;
     }
@@ -131,7 +258,126 @@ public class Server implements Runnable {
         return m_instance;
     }
 
+    private static void printHelp() {
+        System.out.println("\nrscminus v" + Settings.versionNumber + "\n");
+        System.out.println("syntax:");
+        System.out.println("\t[OPTIONS]");
+        System.out.println("options:");
+        System.out.println("\t-a\t\t\tDon't rate limit connections from loopback, for local load tests");
+        System.out.println("\t-c<policy>\t\tSet tick catch up policy: drop, burst or stretch (Default is drop)");
+        System.out.println("\t-h\t\t\tShow this usage dialog");
+        System.out.println("\t-k<bits>\t\tRSA key size when generating new keys (Default is " + Settings.serverRSAKeySize + ")");
+        System.out.println("\t-l<logins>\t\tMaximum logins admitted per tick, 0 is unlimited (Default is " + Settings.serverLoginsPerTick + ")");
+        System.out.println("\t-m[port]\t\tServe metrics on 127.0.0.1 (Default port is " + DEFAULT_METRICS_PORT + ")");
+        System.out.println("\t-n<threads>\t\tSet network reader thread count (Default is " + Settings.serverNetworkThreads + ")");
+        System.out.println("\t-p[threads]\t\tRun per-player tick phases in parallel (Default is all processors)");
+        System.out.println("\t-s<areas>\t\tShard size in 8x8 view areas for parallel ticks, 0 is one shard (Default is " + Settings.serverShardSize + ")");
+        System.out.println("\t-t\t\t\tPrint average tick time every " + TICK_REPORT_INTERVAL + " ticks");
+    }
+
+    private static boolean parseArguments(String args[]) {
+        for (String arg : args) {
+            if (arg.length() < 2)
+                return false;
+            switch(arg.toLowerCase().substring(0, 2)) {
+                case "-a":
+                    Settings.serverAdmitLoopback = true;
+                    break;
+                case "-c":
+                    switch (arg.substring(2).toLowerCase()) {
+                        case "drop":
+                            Settings.serverTickCatchUp = TickManager.CATCHUP_DROP;
+                            break;
+                        case "burst":
+                            Settings.serverTickCatchUp = TickManager.CATCHUP_BURST;
+                            break;
+                        case "stretch":
+                            Settings.serverTickCatchUp = TickManager.CATCHUP_STRETCH;
+                            break;
+                        default:
+                            return false;
+                    }
+                    break;
+                case "-k":
+                    try {
+                        int bits = Integer.parseInt(arg.substring(2));
+                        if (bits < 512)
+                            return false;
+                        Settings.serverRSAKeySize = bits;
+                    } catch (Exception e) {
+                        return false;
+                    }
+                    break;
+                case "-l":
+                    try {
+                        int logins = Integer.parseInt(arg.substring(2));
+                        if (logins < 0)
+                            return false;
+                        Settings.serverLoginsPerTick = logins;
+                    } catch (Exception e) {
+                        return false;
+                    }
+                    break;
+                case "-m":
+                    try {
+                        int port = DEFAULT_METRICS_PORT;
+                        if (arg.length() > 2)
+                            port = Integer.parseInt(arg.substring(2));
+                        if (port < 1 || port > 65535)
+                            return false;
+                        Settings.serverMetricsPort = port;
+                    } catch (Exception e) {
+                        return false;
+                    }
+                    break;
+                case "-n":
+                    try {
+                        int threads = Integer.parseInt(arg.substring(2));
+                        if (threads < 1)
+                            return false;
+                        Settings.serverNetworkThreads = threads;
+                    } catch (Exception e) {
+                        return false;
+                    }
+                    break;
+                case "-p":
+                    try {
+                        int threads = Runtime.getRuntime().availableProcessors();
+                        if (arg.length() > 2)
+                            threads = Integer.parseInt(arg.substring(2));
+                        if (threads < 1)
+                            return false;
+                        Settings.serverTickThreads = threads;
+                    } catch (Exception e) {
+                        return false;
+                    }
+                    break;
+                case "-s":
+                    try {
+                        int areas = Integer.parseInt(arg.substring(2));
+                        if (areas < 0)
+                            return false;
+                        Settings.serverShardSize = areas;
+                    } catch (Exception e) {
+                        return false;
+                    }
+                    break;
+                case "-t":
+                    Settings.serverTickReport = true;
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
     public static void main(String args[]) {
+        if (!parseArguments(args)) {
+            printHelp();
+            return;
+        }
+
         m_instance = new Server();
         m_thread = new Thread(m_instance);
         m_thread.start();
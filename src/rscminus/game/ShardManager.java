@@ -0,0 +1,228 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.game;
+
+import rscminus.common.IndexList;
+import rscminus.game.constants.Game;
+import rscminus.game.entity.Player;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits the view area grid into rectangular shards that each own the players standing in them.
+ * Shards process their players in parallel. A player that walks into another shard is handed off:
+ * they leave their old view area right away, but only join the new one once every shard has
+ * finished, so no two shards ever modify the same view area. Object and door changes made by a
+ * shard are queued the same way, so every shard reads the world as it was at the start of the tick.
+ */
+public class ShardManager {
+    private IndexList m_shards[];
+    private IndexList m_handoffs[];
+    private int m_playerShard[];
+    private int m_handoffShard[];
+    private int m_shardSize;
+    private int m_width;
+    private int m_height;
+    private ThreadLocal<ShardTask> m_currentTask;
+    private volatile boolean m_parallel;
+
+    // Queued world changes, each stored as a type, handle and id
+    private static final int CHANGE_OBJECT = 0;
+    private static final int CHANGE_WALL_OBJECT = 1;
+    private static final int CHANGE_SIZE = 3;
+    private static final int INITIAL_CHANGE_CAPACITY = 8;
+
+    private class ShardTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private int m_shard;
+        private int m_changes[];
+        private int m_changeCount;
+
+        ShardTask(int shard) {
+            m_shard = shard;
+        }
+
+        protected void compute() {
+            m_currentTask.set(this);
+            try {
+                processShard(m_shard);
+            } finally {
+                m_currentTask.remove();
+            }
+        }
+
+        void addChange(int type, int handle, int id) {
+            if (m_changes == null)
+                m_changes = new int[INITIAL_CHANGE_CAPACITY * CHANGE_SIZE];
+            else if (m_changeCount * CHANGE_SIZE == m_changes.length)
+                m_changes = Arrays.copyOf(m_changes, m_changes.length * 2);
+            int offset = m_changeCount++ * CHANGE_SIZE;
+            m_changes[offset] = type;
+            m_changes[offset + 1] = handle;
+            m_changes[offset + 2] = id;
+        }
+
+        void applyChanges(WorldManager worldManager) {
+            for (int i = 0; i < m_changeCount * CHANGE_SIZE; i += CHANGE_SIZE) {
+                if (m_changes[i] == CHANGE_OBJECT)
+                    worldManager.setObjectID(m_changes[i + 1], m_changes[i + 2]);
+                else
+                    worldManager.setWallObjectID(m_changes[i + 1], m_changes[i + 2]);
+            }
+        }
+    }
+
+    public ShardManager() {
+        m_currentTask = new ThreadLocal<ShardTask>();
+    }
+
+    public void init(int shardSize, int playerMax) {
+        // A shard size of 0 keeps the whole world in one shard
+        int areaWidth = Game.WORLD_WIDTH >> 3;
+        int areaHeight = Game.WORLD_HEIGHT >> 3;
+        m_shardSize = (shardSize > 0) ? shardSize : Math.max(areaWidth, areaHeight);
+        m_width = (areaWidth + m_shardSize - 1) / m_shardSize;
+        m_height = (areaHeight + m_shardSize - 1) / m_shardSize;
+
+        IndexList players = new IndexList(playerMax);
+        IndexList handoffs = new IndexList(playerMax);
+        m_shards = new IndexList[m_width * m_height];
+        m_handoffs = new IndexList[m_width * m_height];
+        for (int i = 0; i < m_shards.length; i++) {
+            m_shards[i] = new IndexList(players);
+            m_handoffs[i] = new IndexList(handoffs);
+        }
+        m_playerShard = new int[playerMax];
+        m_handoffShard = new int[playerMax];
+        System.out.println("shards: " + m_width + "x" + m_height + " (" + m_shardSize + " view areas each)");
+    }
+
+    public int getShardCount() {
+        return m_shards.length;
+    }
+
+    public int getShard(int viewX, int viewY) {
+        int x = Math.min(Math.max(viewX / m_shardSize, 0), m_width - 1);
+        int y = Math.min(Math.max(viewY / m_shardSize, 0), m_height - 1);
+        return (x * m_height) + y;
+    }
+
+    public void add(Player player) {
+        int index = player.getIndex();
+        int shard = getShard(player.getX() >> 3, player.getY() >> 3);
+        m_playerShard[index] = shard;
+        m_shards[shard].add(index);
+    }
+
+    public void remove(Player player) {
+        int index = player.getIndex();
+        m_shards[m_playerShard[index]].remove(index);
+        m_handoffs[m_playerShard[index]].remove(index);
+    }
+
+    public boolean handoff(Player player, int viewX, int viewY) {
+        int index = player.getIndex();
+        int current = m_playerShard[index];
+        int shard = getShard(viewX, viewY);
+        if (shard == current)
+            return false;
+
+        // Outside of parallel processing the player can move shards right away
+        if (!m_parallel) {
+            move(index, shard);
+            return false;
+        }
+
+        // Only the current shard's worker touches its handoff list
+        m_handoffShard[index] = shard;
+        m_handoffs[current].add(index);
+        return true;
+    }
+
+    public boolean deferObjectID(int handle, int id) {
+        return defer(CHANGE_OBJECT, handle, id);
+    }
+
+    public boolean deferWallObjectID(int handle, int id) {
+        return defer(CHANGE_WALL_OBJECT, handle, id);
+    }
+
+    private boolean defer(int type, int handle, int id) {
+        // Outside of parallel processing changes are made right away
+        if (!m_parallel)
+            return false;
+
+        // Only the worker processing the shard touches its task's queue
+        ShardTask task = m_currentTask.get();
+        if (task == null)
+            return false;
+        task.addChange(type, handle, id);
+        return true;
+    }
+
+    private void move(int index, int shard) {
+        m_shards[m_playerShard[index]].remove(index);
+        m_playerShard[index] = shard;
+        m_shards[shard].add(index);
+    }
+
+    private void processShard(int shard) {
+        PlayerManager playerManager = Server.getInstance().getPlayerManager();
+        IndexList players = m_shards[shard];
+        for (int i = players.getFirst(); i != IndexList.NONE; i = players.getNext(i))
+            playerManager.getPlayer(i).process();
+    }
+
+    public void process(ForkJoinPool pool) {
+        ArrayList<ShardTask> tasks = new ArrayList<ShardTask>();
+        for (int i = 0; i < m_shards.length; i++) {
+            if (!m_shards[i].isEmpty())
+                tasks.add(new ShardTask(i));
+        }
+
+        // invoke() returns once every shard is done, queued changes and handoffs are applied after that
+        m_parallel = true;
+        pool.invoke(new RecursiveAction() {
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        m_parallel = false;
+
+        WorldManager worldManager = Server.getInstance().getWorldManager();
+        for (ShardTask task : tasks)
+            task.applyChanges(worldManager);
+
+        PlayerManager playerManager = Server.getInstance().getPlayerManager();
+        for (int shard = 0; shard < m_handoffs.length; shard++) {
+            IndexList handoffs = m_handoffs[shard];
+            int index;
+            while ((index = handoffs.getFirst()) != IndexList.NONE) {
+                handoffs.remove(index);
+                move(index, m_handoffShard[index]);
+                playerManager.getPlayer(index).getViewRegion().enter(playerManager.getPlayer(index));
+            }
+        }
+    }
+}
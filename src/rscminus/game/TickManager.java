@@ -23,27 +23,92 @@ public class TickManager {
     private long m_tickRate;
     private long m_tickNext;
     private long m_tickCount;
+    private long m_tickLateCount;
+    private long m_tickSkipCount;
+    private int m_catchUpPolicy;
+
+    // What to do when ticks fall behind schedule
+    public static final int CATCHUP_DROP = 0; // Skip missed ticks and stay on the original cadence
+    public static final int CATCHUP_BURST = 1; // Run missed ticks back to back
+    public static final int CATCHUP_STRETCH = 2; // Restart the cadence from the late tick
+
+    // Ticks starting later than this are counted as late
+    public static final long TICK_LATE_TOLERANCE = 10000000L;
+
+    // Most missed ticks CATCHUP_BURST will replay before dropping the rest
+    public static final int CATCHUP_BURST_MAX = 5;
+
+    public TickManager() {
+        m_catchUpPolicy = CATCHUP_DROP;
+    }
 
     public void setTickRate(long tickRate) {
-        m_tickRate = tickRate;
+        m_tickRate = tickRate * 1000000L;
+    }
+
+    public void setCatchUpPolicy(int policy) {
+        m_catchUpPolicy = policy;
     }
 
     public void reset() {
-        m_tickNext = System.currentTimeMillis() + m_tickNext;
+        m_tickNext = System.nanoTime();
         m_tickCount = 0;
+        m_tickLateCount = 0;
+        m_tickSkipCount = 0;
     }
 
     public long update() {
-        long elapsed = System.currentTimeMillis() - m_tickNext;
-        if (elapsed >= 0) {
-            long tickSkip = 1 + (elapsed / m_tickRate);
-            m_tickNext += tickSkip * m_tickRate;
-            m_tickCount++;
+        long now = System.nanoTime();
+        long elapsed = now - m_tickNext;
+        if (elapsed < 0)
+            return elapsed;
+
+        if (elapsed > TICK_LATE_TOLERANCE)
+            m_tickLateCount++;
+
+        long missed = elapsed / m_tickRate;
+        if (missed == 0) {
+            m_tickNext += m_tickRate;
+        } else {
+            switch (m_catchUpPolicy) {
+            case CATCHUP_BURST:
+                if (missed > CATCHUP_BURST_MAX) {
+                    m_tickSkipCount += missed - CATCHUP_BURST_MAX;
+                    m_tickNext += (missed - CATCHUP_BURST_MAX) * m_tickRate;
+                }
+                m_tickNext += m_tickRate;
+                break;
+            case CATCHUP_STRETCH:
+                m_tickNext = now + m_tickRate;
+                break;
+            default:
+                m_tickSkipCount += missed;
+                m_tickNext += (missed + 1) * m_tickRate;
+                break;
+            }
         }
+
+        m_tickCount++;
         return elapsed;
     }
 
+    // Milliseconds until the next tick, rounded up so a selector never wakes early
+    public long getTimeRemaining() {
+        long remaining = m_tickNext - System.nanoTime();
+        if (remaining <= 0)
+            return 0;
+        return (remaining + 999999L) / 1000000L;
+    }
+
     public long getTickCount() {
         return m_tickCount;
     }
+
+    public long getLateCount() {
+        return m_tickLateCount;
+    }
+
+    public long getSkipCount() {
+        return m_tickSkipCount;
+    }
 }
@@ -0,0 +1,251 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.game;
+
+import rscminus.common.JGameData;
+import rscminus.game.constants.Game;
+import rscminus.game.world.ObjectStore;
+import rscminus.game.world.Reachability;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Precompiled world image holding the landscape collision grid, tile directions and the object
+ * tables sorted by view area. The server maps it at startup instead of decompressing the
+ * landscape and parsing the object files. The image records a stamp of its source files and is
+ * ignored once any of them change.
+ *
+ * Layout: header, collision grid, tile direction grid, component grid, object table, wall object
+ * table. Grids are WORLD_WIDTH * WORLD_HEIGHT entries indexed by (x * WORLD_HEIGHT) + y, bytes for
+ * the collision and direction grids and ints for the reachability components. Table entries are
+ * x, y and id as shorts followed by a direction byte.
+ */
+public class WorldImage {
+    private MappedByteBuffer m_buffer;
+    private int m_objectCount;
+    private int m_wallObjectCount;
+    private int m_componentCount;
+
+    // Constants
+    public static final String DEFAULT_FILE = "world.img";
+    public static final int MAGIC = 0x52534357; // RSCW
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 40;
+    public static final int GRID_SIZE = Game.WORLD_WIDTH * Game.WORLD_HEIGHT;
+    public static final int COMPONENT_GRID_SIZE = GRID_SIZE * Integer.BYTES;
+    public static final int TABLE_OFFSET = HEADER_SIZE + (2 * GRID_SIZE) + COMPONENT_GRID_SIZE;
+    public static final int ENTRY_SIZE = 7;
+
+    // Files the image is compiled from
+    public static final String SOURCES[] = {
+            JGameData.CONTENT_CONFIG,
+            JGameData.CONTENT_LANDSCAPE,
+            JGameData.CONTENT_LANDSCAPE_MEMBERS,
+            WorldManager.OBJECTS_FILE,
+            WorldManager.WALL_OBJECTS_FILE
+    };
+
+    private WorldImage(MappedByteBuffer buffer, int objectCount, int wallObjectCount, int componentCount) {
+        m_buffer = buffer;
+        m_objectCount = objectCount;
+        m_wallObjectCount = wallObjectCount;
+        m_componentCount = componentCount;
+    }
+
+    public static long getSourceStamp() {
+        long stamp = VERSION;
+        for (String source : SOURCES) {
+            File file = new File(source);
+            stamp = (stamp * 31) + file.length();
+            stamp = (stamp * 31) + file.lastModified();
+        }
+        return stamp;
+    }
+
+    public static WorldImage open(String fname) {
+        File file = new File(fname);
+        if (!file.exists())
+            return null;
+
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                System.out.println("world image " + fname + " is from another version, ignoring it");
+                return null;
+            }
+            if (buffer.getLong(8) != getSourceStamp()) {
+                System.out.println("world image " + fname + " is stale, ignoring it");
+                return null;
+            }
+            if (buffer.getInt(16) != Game.WORLD_WIDTH || buffer.getInt(20) != Game.WORLD_HEIGHT)
+                return null;
+
+            int objectCount = buffer.getInt(24);
+            int wallObjectCount = buffer.getInt(28);
+            int componentCount = buffer.getInt(32);
+            long size = TABLE_OFFSET + ((long)(objectCount + wallObjectCount) * ENTRY_SIZE);
+            if (in.length() != size)
+                return null;
+            return new WorldImage(buffer, objectCount, wallObjectCount, componentCount);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+        ByteBuffer buffer = m_buffer.duplicate();
+        buffer.position(offset);
+        buffer.limit(offset + length);
+        return buffer.slice();
+    }
+
+    public ByteBuffer getCollisionMask() {
+        return slice(HEADER_SIZE, GRID_SIZE);
+    }
+
+    public ByteBuffer getTileDirections() {
+        return slice(HEADER_SIZE + GRID_SIZE, GRID_SIZE);
+    }
+
+    public IntBuffer getComponents() {
+        // Components change when doors open and close, so they're the one grid copied to the heap
+        IntBuffer components = IntBuffer.allocate(GRID_SIZE);
+        components.put(slice(HEADER_SIZE + (2 * GRID_SIZE), COMPONENT_GRID_SIZE).asIntBuffer());
+        components.clear();
+        return components;
+    }
+
+    public int getComponentCount() {
+        return m_componentCount;
+    }
+
+    public int getObjectCount() {
+        return m_objectCount;
+    }
+
+    public int getWallObjectCount() {
+        return m_wallObjectCount;
+    }
+
+    public ByteBuffer getObjects() {
+        return slice(TABLE_OFFSET, m_objectCount * ENTRY_SIZE);
+    }
+
+    public ByteBuffer getWallObjects() {
+        return slice(TABLE_OFFSET + (m_objectCount * ENTRY_SIZE), m_wallObjectCount * ENTRY_SIZE);
+    }
+
+    private static int[] sortByViewArea(ObjectStore store) {
+        // Keys hold the view area above the handle, so objects keep their load order within an area
+        long keys[] = new long[store.getCount()];
+        for (int i = 0; i < keys.length; i++) {
+            long area = ((long)(store.getX(i) >> 3) * (Game.WORLD_HEIGHT >> 3)) + (store.getY(i) >> 3);
+            keys[i] = (area << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        int handles[] = new int[keys.length];
+        for (int i = 0; i < keys.length; i++)
+            handles[i] = (int)keys[i];
+        return handles;
+    }
+
+    private static void writeTable(ByteBuffer buffer, ObjectStore store) {
+        for (int handle : sortByViewArea(store)) {
+            buffer.putShort((short)store.getX(handle));
+            buffer.putShort((short)store.getY(handle));
+            buffer.putShort((short)store.getID(handle));
+            buffer.put((byte)store.getDirection(handle));
+        }
+    }
+
+    public static boolean write(String fname, WorldManager world) {
+        ObjectStore objects = world.getObjectStore();
+        ObjectStore wallObjects = world.getWallObjectStore();
+        Reachability reachability = world.getReachability();
+        int size = TABLE_OFFSET + ((objects.getCount() + wallObjects.getCount()) * ENTRY_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(getSourceStamp());
+        buffer.putInt(Game.WORLD_WIDTH);
+        buffer.putInt(Game.WORLD_HEIGHT);
+        buffer.putInt(objects.getCount());
+        buffer.putInt(wallObjects.getCount());
+        buffer.putInt(reachability.getComponentCount());
+        buffer.putInt(0);
+        for (int x = 0; x < Game.WORLD_WIDTH; x++)
+            for (int y = 0; y < Game.WORLD_HEIGHT; y++)
+                buffer.put((byte)world.getLandscapeCollisionMask(x, y));
+        for (int x = 0; x < Game.WORLD_WIDTH; x++)
+            for (int y = 0; y < Game.WORLD_HEIGHT; y++)
+                buffer.put((byte)world.getTileDirection(x, y));
+        for (int x = 0; x < Game.WORLD_WIDTH; x++)
+            for (int y = 0; y < Game.WORLD_HEIGHT; y++)
+                buffer.putInt(reachability.getComponent(x, y));
+        writeTable(buffer, objects);
+        writeTable(buffer, wallObjects);
+        buffer.flip();
+
+        // Write next to the target and rename so a running server never maps a partial image
+        File file = new File(fname);
+        File temp = new File(fname + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+        file.delete();
+        return temp.renameTo(file);
+    }
+
+    public static void main(String args[]) {
+        String fname = (args.length > 0) ? args[0] : DEFAULT_FILE;
+        if (!JGameData.init(true)) {
+            System.out.println("Unable to load game data");
+            return;
+        }
+
+        WorldManager world = new WorldManager();
+        if (!world.init(null)) {
+            System.out.println("Unable to load world objects");
+            return;
+        }
+
+        if (!write(fname, world)) {
+            System.out.println("Unable to write world image " + fname);
+            return;
+        }
+        System.out.println("Wrote world image " + fname + " (" + (new File(fname).length() / 1024) + "KB)");
+    }
+}
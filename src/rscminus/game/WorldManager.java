@@ -19,36 +19,73 @@
 
 package rscminus.game;
 
+import rscminus.common.IndexList;
 import rscminus.common.JGameData;
 import rscminus.game.constants.Game;
 import rscminus.game.entity.GameObject;
 import rscminus.game.entity.Player;
 import rscminus.game.entity.WallObject;
+import rscminus.game.world.ObjectStore;
+import rscminus.game.world.Reachability;
 import rscminus.game.world.ViewArea;
 
 import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class WorldManager {
     private ViewArea m_viewArea[][];
+    private IndexList m_viewAreaPlayers;
+    private ObjectStore m_objectStore;
+    private ObjectStore m_wallObjectStore;
+    private ViewArea m_dirtyViewAreas[];
+    private int m_dirtyViewAreaCount;
     private int m_width;
     private int m_height;
+    private byte m_collisionMask[];
+    private ByteBuffer m_landscapeMask;
+    private ByteBuffer m_tileDirections;
+    private Reachability m_reachability;
+
+    // World object files
+    public static final String OBJECTS_FILE = "objects.bin";
+    public static final String WALL_OBJECTS_FILE = "wallObjects.bin";
+
+    // Initial dirty view area list size, the list doubles when full
+    public static final int INITIAL_DIRTY_CAPACITY = 64;
 
     public WorldManager() {
         m_width = Game.WORLD_WIDTH >> 3;
         m_height = Game.WORLD_HEIGHT >> 3;
         m_viewArea = new ViewArea[m_width][m_height];
+        m_objectStore = new ObjectStore();
+        m_wallObjectStore = new ObjectStore();
+        m_reachability = new Reachability(this);
+
+        // Every view area's player list shares one set of links keyed by player index
+        m_viewAreaPlayers = new IndexList(Server.DEFAULT_PLAYER_MAX);
+        m_dirtyViewAreas = new ViewArea[INITIAL_DIRTY_CAPACITY];
         for (int x = 0; x < m_width; x++)
             for (int y = 0; y < m_height; y++)
-                m_viewArea[x][y] = new ViewArea();
+                m_viewArea[x][y] = new ViewArea(this, m_viewAreaPlayers);
+    }
+
+    public synchronized void addDirtyViewArea(ViewArea view) {
+        if (m_dirtyViewAreaCount == m_dirtyViewAreas.length)
+            m_dirtyViewAreas = Arrays.copyOf(m_dirtyViewAreas, m_dirtyViewAreaCount * 2);
+        m_dirtyViewAreas[m_dirtyViewAreaCount++] = view;
     }
 
     public void clearUpdates() {
-        for (int x = 0; x < m_width; x++)
-            for (int y = 0; y < m_height; y++)
-                m_viewArea[x][y].clearUpdates();
+        // Only areas that queued an update this tick have anything to clear
+        for (int i = 0; i < m_dirtyViewAreaCount; i++) {
+            m_dirtyViewAreas[i].clearUpdates();
+            m_dirtyViewAreas[i] = null;
+        }
+        m_dirtyViewAreaCount = 0;
     }
 
     public ViewArea getViewArea(int x, int y) {
@@ -61,19 +98,62 @@ public class WorldManager {
         return m_viewArea[x >> 3][y >> 3];
     }
 
+    public ObjectStore getObjectStore() {
+        return m_objectStore;
+    }
+
+    public ObjectStore getWallObjectStore() {
+        return m_wallObjectStore;
+    }
+
     public void addObject(int x, int y, int id) {
-        ViewArea view = getViewAreaCoordinate(x, y);
-        view.add(new GameObject(view, x, y, id, getTileDirection(x, y)));
+        int handle = m_objectStore.add(x, y, id, getTileDirection(x, y));
+        getViewAreaCoordinate(x, y).addObject(handle);
     }
 
     public void addWallObject(int x, int y, int id, int direction) {
-        ViewArea view = getViewAreaCoordinate(x, y);
-        view.add(new WallObject(view, x, y, id, direction));
+        int handle = m_wallObjectStore.add(x, y, id, direction);
+        getViewAreaCoordinate(x, y).addWallObject(handle);
+        updateCollisionMask(x, y);
+    }
+
+    public void setObjectID(int handle, int id) {
+        // Shard workers queue the change until every shard has finished the tick
+        if (Server.getInstance().getShardManager().deferObjectID(handle, id))
+            return;
+        m_objectStore.setID(handle, id);
+        getViewAreaCoordinate(m_objectStore.getX(handle), m_objectStore.getY(handle)).updateObject(handle);
+    }
+
+    public void setWallObjectID(int handle, int id) {
+        if (Server.getInstance().getShardManager().deferWallObjectID(handle, id))
+            return;
+        int x = m_wallObjectStore.getX(handle);
+        int y = m_wallObjectStore.getY(handle);
+        int previousMask = getCollisionMask(x, y);
+        m_wallObjectStore.setID(handle, id);
+        getViewAreaCoordinate(x, y).updateWallObject(handle);
+        updateCollisionMask(x, y);
+
+        // Only doors that changed the collision grid affect components and cached routes
+        int mask = getCollisionMask(x, y);
+        if (mask != previousMask) {
+            m_reachability.update(x, y, previousMask, mask);
+            Server.getInstance().getPathManager().invalidate(x, y);
+        }
+    }
+
+    public Reachability getReachability() {
+        return m_reachability;
+    }
+
+    public boolean isReachable(int startX, int startY, int destX, int destY) {
+        return m_reachability.isReachable(startX, startY, destX, destY);
     }
 
     public void removePlayer(Player player) {
-        ViewArea view = getViewAreaCoordinate(player.getX(), player.getY());
-        view.remove(player);
+        // Unlink from the view area the player was last added to, which may not match their coordinates yet
+        m_viewAreaPlayers.unlink(player.getIndex());
     }
 
     public void interactWallObject(Player player, int x, int y, int direction, int option) {
@@ -94,37 +174,74 @@ public class WorldManager {
             player.interactObject(obj, option);
     }
 
-    public int getCollisionMask(int x, int y) {
+    public int getLandscapeCollisionMask(int x, int y) {
+        if (m_landscapeMask != null)
+            return m_landscapeMask.get((x * Game.WORLD_HEIGHT) + y);
+
         int floor = y / Game.WORLD_Y_OFFSET;
         int floorOffset = floor * Game.WORLD_Y_OFFSET;
         int worldX = Game.WORLD_PLANE_X + x;
         int worldY = Game.WORLD_PLANE_Y - floorOffset + y;
         int regionX = worldX / 48;
         int regionY = worldY / 48;
+
+        // Tiles outside of the loaded landscape are never walkable
+        if (floor >= Game.REGION_FLOORS || regionX >= JGameData.regionCollisionMask.length || regionY >= JGameData.regionCollisionMask[regionX].length)
+            return Game.COLLISION_TILE;
+
         worldX = worldX - (regionX * 48);
         worldY = worldY - (regionY * 48);
         int index = (worldX * Game.REGION_HEIGHT) + worldY;
-        int regionCollisionMask = JGameData.regionCollisionMask[regionX][regionY][floor][index];
+        return JGameData.regionCollisionMask[regionX][regionY][floor][index];
+    }
+
+    private void initCollisionMask() {
+        m_collisionMask = new byte[Game.WORLD_WIDTH * Game.WORLD_HEIGHT];
+        for (int x = 0; x < Game.WORLD_WIDTH; x++) {
+            int offset = x * Game.WORLD_HEIGHT;
+            for (int y = 0; y < Game.WORLD_HEIGHT; y++)
+                m_collisionMask[offset + y] = (byte)getLandscapeCollisionMask(x, y);
+        }
+    }
+
+    public void updateCollisionMask(int x, int y) {
+        if (m_collisionMask == null)
+            return;
+
+        int regionCollisionMask = getLandscapeCollisionMask(x, y);
         int objectCollisionMask = Game.COLLISION_NONE;
 
         ViewArea view = getViewAreaCoordinate(x, y);
-        WallObject wallobj = view.getWallObject(x, y);
+        int handle = view.getWallObjectHandle(x, y);
 
-        if (wallobj != null) {
-            objectCollisionMask = wallobj.getCollisionMask();
-            regionCollisionMask &= ~(wallobj.getExpectedCollisionMask());
+        if (handle != ViewArea.NONE) {
+            int direction = m_wallObjectStore.getDirection(handle);
+            objectCollisionMask = WallObject.getCollisionMask(m_wallObjectStore.getID(handle), direction);
+            regionCollisionMask &= ~(WallObject.getExpectedCollisionMask(direction));
         }
 
-        return regionCollisionMask | objectCollisionMask;
+        m_collisionMask[(x * Game.WORLD_HEIGHT) + y] = (byte)(regionCollisionMask | objectCollisionMask);
+    }
+
+    public int getCollisionMask(int x, int y) {
+        if (x < 0 || y < 0 || x >= Game.WORLD_WIDTH || y >= Game.WORLD_HEIGHT)
+            return Game.COLLISION_TILE;
+        return m_collisionMask[(x * Game.WORLD_HEIGHT) + y];
     }
 
     public int getTileDirection(int x, int y) {
+        if (m_tileDirections != null)
+            return m_tileDirections.get((x * Game.WORLD_HEIGHT) + y);
+
         int floor = y / Game.WORLD_Y_OFFSET;
         int floorOffset = floor * Game.WORLD_Y_OFFSET;
         int worldX = Game.WORLD_PLANE_X + x;
         int worldY = Game.WORLD_PLANE_Y - floorOffset + y;
         int regionX = worldX / 48;
         int regionY = worldY / 48;
+        if (floor >= Game.REGION_FLOORS || regionX >= JGameData.regionDirection.length || regionY >= JGameData.regionDirection[regionX].length)
+            return 0;
+
         worldX = worldX - (regionX * 48);
         worldY = worldY - (regionY * 48);
         int index = (worldX * Game.REGION_HEIGHT) + worldY;
@@ -180,8 +297,6 @@ public class WorldManager {
     }
 
     public boolean checkCollision(int x, int y, int directionX, int directionY) {
-        System.out.println(getCollisionMask(x + directionX, y + directionY));
-
         if (checkCollisionCardinal(x, y, directionX, directionY))
             return true;
 
@@ -191,11 +306,51 @@ public class WorldManager {
         return false;
     }
 
-    public boolean init() {
+    private void initImage(WorldImage image) {
+        m_landscapeMask = image.getCollisionMask();
+        m_tileDirections = image.getTileDirections();
+        m_collisionMask = new byte[Game.WORLD_WIDTH * Game.WORLD_HEIGHT];
+        m_landscapeMask.duplicate().get(m_collisionMask);
+
+        ByteBuffer objects = image.getObjects();
+        m_objectStore.ensureCapacity(image.getObjectCount());
+        for (int i = 0; i < image.getObjectCount(); i++) {
+            int x = objects.getShort() & 0xFFFF;
+            int y = objects.getShort() & 0xFFFF;
+            int id = objects.getShort() & 0xFFFF;
+            int direction = objects.get() & 0xFF;
+            int handle = m_objectStore.add(x, y, id, direction);
+            getViewAreaCoordinate(x, y).addObject(handle);
+        }
+
+        ByteBuffer wallObjects = image.getWallObjects();
+        m_wallObjectStore.ensureCapacity(image.getWallObjectCount());
+        for (int i = 0; i < image.getWallObjectCount(); i++) {
+            int x = wallObjects.getShort() & 0xFFFF;
+            int y = wallObjects.getShort() & 0xFFFF;
+            int id = wallObjects.getShort() & 0xFFFF;
+            int direction = wallObjects.get() & 0xFF;
+            addWallObject(x, y, id, direction);
+        }
+    }
+
+    public boolean init(WorldImage image) {
+        long start = System.nanoTime();
+        if (image != null) {
+            initImage(image);
+            System.out.println("world loaded from image in " + ((System.nanoTime() - start) / 1000000) + "ms");
+            reportObjectMemory();
+            m_reachability.init(image.getComponents(), image.getComponentCount());
+            return true;
+        }
+
+        // Landscape collisions are flattened first, wall objects patch their tiles as they're added
+        initCollisionMask();
         try {
-            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File("objects.bin"))));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(OBJECTS_FILE))));
             int count = in.readInt();
             System.out.println("count: " + count);
+            m_objectStore.ensureCapacity(count);
             for (int i = 0; i < count; i++) {
                 int x = in.readUnsignedShort();
                 int y = in.readUnsignedShort();
@@ -203,9 +358,10 @@ public class WorldManager {
                 addObject(x, y, id);
             }
             in.close();
-            in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File("wallObjects.bin"))));
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(WALL_OBJECTS_FILE))));
             count = in.readInt();
             System.out.println("count: " + count);
+            m_wallObjectStore.ensureCapacity(count);
             for (int i = 0; i < count; i++) {
                 int x = in.readUnsignedShort();
                 int y = in.readUnsignedShort();
@@ -218,6 +374,19 @@ public class WorldManager {
             e.printStackTrace();
             return false;
         }
+        System.out.println("world loaded in " + ((System.nanoTime() - start) / 1000000) + "ms");
+        reportObjectMemory();
+        m_reachability.init();
         return true;
     }
+
+    private void reportObjectMemory() {
+        int count = m_objectStore.getCount() + m_wallObjectStore.getCount();
+        long store = m_objectStore.getMemoryUsage() + m_wallObjectStore.getMemoryUsage();
+        long indexes = 0;
+        for (int x = 0; x < m_width; x++)
+            for (int y = 0; y < m_height; y++)
+                indexes += m_viewArea[x][y].getMemoryUsage();
+        System.out.println("world objects: " + count + ", store size: " + (store / 1024) + "KB, view area indexes: " + (indexes / 1024) + "KB");
+    }
 }
@@ -19,41 +19,39 @@
 
 package rscminus.game.entity;
 
-import rscminus.game.world.ViewArea;
+import rscminus.game.Server;
+import rscminus.game.world.ObjectStore;
 
 public class GameObject extends Entity {
-    private int m_x;
-    private int m_y;
-    private int m_id;
-    private int m_direction;
-    private ViewArea m_viewArea;
-
-    public GameObject(ViewArea view, int x, int y, int id, int direction) {
-        m_x = x;
-        m_y = y;
-        m_id = id;
-        m_direction = direction;
-        m_viewArea = view;
+    private ObjectStore m_store;
+    private int m_handle;
+
+    public GameObject(ObjectStore store, int handle) {
+        m_store = store;
+        m_handle = handle;
+    }
+
+    public int getHandle() {
+        return m_handle;
     }
 
     public int getX() {
-        return m_x;
+        return m_store.getX(m_handle);
     }
 
     public int getY() {
-        return m_y;
+        return m_store.getY(m_handle);
     }
 
     public int getID() {
-        return m_id;
+        return m_store.getID(m_handle);
     }
 
     public int getDirection() {
-        return m_direction;
+        return m_store.getDirection(m_handle);
     }
 
     public void setID(int id) {
-        m_id = id;
-        m_viewArea.update(this);
+        Server.getInstance().getWorldManager().setObjectID(m_handle, id);
     }
 }
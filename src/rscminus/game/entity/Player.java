@@ -30,12 +30,12 @@ import rscminus.game.entity.player.ActionSlot;
 import rscminus.game.entity.player.WalkingQueue;
 import rscminus.game.world.ViewRegion;
 
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 
-public class Player extends Entity {
+public class Player extends Entity implements NetworkHandler {
     private NetworkStream m_incomingStream;
     private NetworkStream m_outgoingStream;
-    private NetworkStream m_packetStream;
     private LoginInfo m_loginInfo;
     private SaveInfo m_saveInfo;
     private ISAACCipher m_isaacIncoming;
@@ -43,6 +43,11 @@ public class Player extends Entity {
     private PlayerManager m_playerManager;
     private WorldManager m_worldManager;
     private SocketChannel m_socket;
+    private volatile SelectionKey m_selectionKey;
+    private PacketQueue m_packetQueue;
+    private OutboundQueue m_outboundQueue;
+    private SelectionKey m_writeKey;
+    private volatile boolean m_readSuspended;
 
     // Server update variables
     private ViewRegion m_viewRegion;
@@ -69,6 +74,7 @@ public class Player extends Entity {
 
     // Player update
     private boolean m_updateAppearance;
+    private NetworkStream m_updateBlock;
 
     // Game state
     private int m_index;
@@ -86,9 +92,11 @@ public class Player extends Entity {
         m_index = index;
         m_playerManager = playerManager;
         m_worldManager = worldManager;
-        m_incomingStream = new NetworkStream();
-        m_outgoingStream = new NetworkStream();
-        m_packetStream = new NetworkStream();
+        BufferPool bufferPool = Server.getInstance().getNetworkManager().getBufferPool();
+        m_incomingStream = new NetworkStream(bufferPool);
+        m_outgoingStream = new NetworkStream(bufferPool);
+        m_packetQueue = new PacketQueue();
+        m_outboundQueue = new OutboundQueue(bufferPool);
         m_isaacIncoming = new ISAACCipher();
         m_isaacOutgoing = new ISAACCipher();
         m_equipmentStats = new int[Game.EQUIP_STAT_COUNT];
@@ -96,20 +104,23 @@ public class Player extends Entity {
         m_questComplete = new boolean[Game.QUEST_COUNT];
         m_walkingQueue = new WalkingQueue();
         m_actionSlot = new ActionSlot();
-        m_viewRegion = new ViewRegion(m_worldManager);
+        m_viewRegion = new ViewRegion(m_worldManager, m_playerManager);
+        m_updateBlock = m_playerManager.createUpdateBlock(m_index);
     }
 
     public void reset() {
-        m_incomingStream.flip();
-        m_outgoingStream.flip();
-        m_packetStream.flip();
+        synchronized (m_incomingStream) {
+            m_incomingStream.release();
+            m_packetQueue.clear();
+        }
+        m_outgoingStream.release();
         m_tutorial = false;
         m_loggedIn = false;
         m_loggedOut = false;
         m_isaacOutgoing.reset();
         m_isaacIncoming.reset();
         setActive(false);
-        setSocket(null);
+        setSocket(null, null);
 
         // Server state
         m_walkingQueue.clear();
@@ -127,7 +138,7 @@ public class Player extends Entity {
     public void setLoginInfo(LoginInfo loginInfo) {
         m_loginInfo = loginInfo;
         m_isaacIncoming.setKeys(m_loginInfo.keys);
-        m_isaacOutgoing.setKeys(m_loginInfo.keys);
+        m_isaacOutgoing.copyFrom(m_isaacIncoming);
         m_loggedIn = false;
     }
 
@@ -210,13 +221,54 @@ public class Player extends Entity {
         if (m_socket != null) {
             SocketUtil.close(m_socket);
             m_socket = null;
+            m_selectionKey = null;
+            m_writeKey = null;
+            m_outboundQueue.clear();
+            synchronized (m_incomingStream) {
+                m_incomingStream.release();
+            }
         }
     }
 
-    public void setSocket(SocketChannel socket) {
+    public void setSocket(SocketChannel socket, SelectionKey key) {
         if (m_socket != null)
             SocketUtil.close(m_socket);
         m_socket = socket;
+        m_selectionKey = key;
+        m_writeKey = null;
+        m_readSuspended = false;
+        m_outboundQueue.clear();
+
+        // Take over the selection key registered by the login queue
+        if (m_selectionKey != null)
+            m_selectionKey.attach(this);
+    }
+
+    public void setSelectionKey(SelectionKey key) {
+        m_selectionKey = key;
+    }
+
+    public void handleRead(SelectionKey key) {
+        SocketChannel socket = (SocketChannel)key.channel();
+        synchronized (m_incomingStream) {
+            int length = m_incomingStream.fill(socket);
+            if (length > 0)
+                Server.getInstance().getMetricsManager().addBytesIn(length);
+            int result;
+            while ((result = m_incomingStream.readPacket(m_packetQueue)) > 0);
+
+            // Connection was closed by the client or sent a packet larger than our buffer
+            if (length < 0 || (result == 0 && m_incomingStream.isFull())) {
+                SocketUtil.close(socket);
+                return;
+            }
+
+            // Stop reading until the tick drains the packet queue
+            if (result < 0) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                m_readSuspended = true;
+            }
+        }
     }
 
     public void sendClientState() {
@@ -494,7 +546,7 @@ public class Player extends Entity {
             break;
         }
         case ActionSlot.ACTION_WALK:
-            m_actionSlot.getWalkingQueue().copyTo(m_walkingQueue);
+            setRoute(m_actionSlot.getWalkingQueue());
             m_actionSlot.clear();
             break;
         case ActionSlot.ACTION_INVENTORY_EQUIP:
@@ -508,6 +560,12 @@ public class Player extends Entity {
         }
     }
 
+    private void setRoute(WalkingQueue request) {
+        // Route to the requested destination ourselves instead of trusting the client's waypoints
+        if (request.isEmpty() || !Server.getInstance().getPathManager().findPath(getX(), getY(), request.getDestinationX(), request.getDestinationY(), m_walkingQueue))
+            m_walkingQueue.clear();
+    }
+
     private void processActionSlot() {
         int action = m_actionSlot.getAction();
 
@@ -522,9 +580,25 @@ public class Player extends Entity {
         }
     }
 
+    public ViewRegion getViewRegion() {
+        return m_viewRegion;
+    }
+
+    public NetworkStream getUpdateBlock() {
+        return m_updateBlock;
+    }
+
+    public void processUpdateBlock() {
+        // The block stays valid until the appearance changes again
+        if (m_updateAppearance) {
+            m_updateBlock.flip();
+            PacketBuilder.writePlayerUpdateAppearance(this, m_updateBlock);
+        }
+    }
+
     public void processPlayerUpdate(NetworkStream stream) {
         if (m_updateAppearance)
-            PacketBuilder.addPlayerUpdateAppearance(this, stream);
+            PacketBuilder.addPlayerUpdateBlock(m_updateBlock, stream);
     }
 
     public void processClientUpdate() {
@@ -553,20 +627,23 @@ public class Player extends Entity {
     }
 
     public void processIncomingPackets() {
-        m_incomingStream.fill(m_socket);
+        // Connection was closed by the network reader
+        if (m_socket != null && !m_socket.isOpen())
+            closeSocket();
 
         int length;
-        while ((length = m_incomingStream.readPacket(m_packetStream)) > 0) {
-            int opcode = m_packetStream.readOpcode(m_isaacIncoming);
+        while ((length = m_packetQueue.poll()) > 0) {
+            NetworkStream packetStream = m_packetQueue.getStream();
+            int opcode = packetStream.readOpcode(m_isaacIncoming);
 
             // Handle incoming packets
             switch (opcode) {
             case OPCODE_INTERACT_WALLOBJECT_OPTION1:
             case OPCODE_INTERACT_WALLOBJECT_OPTION2:
             {
-                int x = m_packetStream.readShort();
-                int y = m_packetStream.readShort();
-                int direction = m_packetStream.readByte();
+                int x = packetStream.readShort();
+                int y = packetStream.readShort();
+                int direction = packetStream.readByte();
                 int option = (opcode == OPCODE_INTERACT_WALLOBJECT_OPTION1) ? 0 : 1;
                 m_actionSlot.setAction(ActionSlot.ACTION_INTERACT_WALLOBJECT);
                 m_actionSlot.setInteraction(x, y, direction, option);
@@ -574,18 +651,19 @@ public class Player extends Entity {
             }
             case OPCODE_WALKTO_SOURCE:
             {
-                int startX = m_packetStream.readUnsignedShort();
-                int startY = m_packetStream.readUnsignedShort();
+                int startX = packetStream.readUnsignedShort();
+                int startY = packetStream.readUnsignedShort();
                 if (startX == getX() && startY == getY())
                     break;
                 m_walkingQueue.clear();
                 m_walkingQueue.add(startX, startY);
                 int waypoints = (length - 5) / 2;
                 for (int i = 0; i < waypoints; i++) {
-                    int x = startX + m_packetStream.readByte();
-                    int y = startY + m_packetStream.readByte();
+                    int x = startX + packetStream.readByte();
+                    int y = startY + packetStream.readByte();
                     m_walkingQueue.add(x, y);
                 }
+                setRoute(m_walkingQueue);
                 break;
             }
             case OPCODE_DISCONNECT:
@@ -599,8 +677,8 @@ public class Player extends Entity {
             case OPCODE_INTERACT_OBJECT_OPTION1:
             case OPCODE_INTERACT_OBJECT_OPTION2:
             {
-                int x = m_packetStream.readShort();
-                int y = m_packetStream.readShort();
+                int x = packetStream.readShort();
+                int y = packetStream.readShort();
                 int option = (opcode == OPCODE_INTERACT_OBJECT_OPTION1) ? 0 : 1;
                 m_actionSlot.setAction(ActionSlot.ACTION_INTERACT_OBJECT);
                 m_actionSlot.setInteraction(x, y, option);
@@ -608,16 +686,16 @@ public class Player extends Entity {
             }
             case OPCODE_EQUIP_ITEM:
                 m_actionSlot.setAction(ActionSlot.ACTION_INVENTORY_EQUIP);
-                m_actionSlot.setInventorySlot(m_packetStream.readUnsignedShort());
+                m_actionSlot.setInventorySlot(packetStream.readUnsignedShort());
                 break;
             case OPCODE_UNEQUIP_ITEM:
                 m_actionSlot.setAction(ActionSlot.ACTION_INVENTORY_UNEQUIP);
-                m_actionSlot.setInventorySlot(m_packetStream.readUnsignedShort());
+                m_actionSlot.setInventorySlot(packetStream.readUnsignedShort());
                 break;
             case OPCODE_WALKTO:
             {
-                int startX = m_packetStream.readUnsignedShort();
-                int startY = m_packetStream.readUnsignedShort();
+                int startX = packetStream.readUnsignedShort();
+                int startY = packetStream.readUnsignedShort();
                 if (startX == getX() && startY == getY())
                     break;
                 m_actionSlot.setAction(ActionSlot.ACTION_WALK);
@@ -625,22 +703,22 @@ public class Player extends Entity {
                 m_actionSlot.getWalkingQueue().add(startX, startY);
                 int waypoints = (length - 5) / 2;
                 for (int i = 0; i < waypoints; i++) {
-                    int x = startX + m_packetStream.readByte();
-                    int y = startY + m_packetStream.readByte();
+                    int x = startX + packetStream.readByte();
+                    int y = startY + packetStream.readByte();
                     m_actionSlot.getWalkingQueue().add(x, y);
                 }
                 break;
             }
             case OPCODE_SET_APPEARANCE:
             {
-                int gender = m_packetStream.readUnsignedByte();
-                int headType = m_packetStream.readUnsignedByte();
-                int top = m_packetStream.readUnsignedByte();
-                int bottom = m_packetStream.readUnsignedByte();
-                int hairColor = m_packetStream.readUnsignedByte();
-                int topColor = m_packetStream.readUnsignedByte();
-                int bottomColor = m_packetStream.readUnsignedByte();
-                int skinColor = m_packetStream.readUnsignedByte();
+                int gender = packetStream.readUnsignedByte();
+                int headType = packetStream.readUnsignedByte();
+                int top = packetStream.readUnsignedByte();
+                int bottom = packetStream.readUnsignedByte();
+                int hairColor = packetStream.readUnsignedByte();
+                int topColor = packetStream.readUnsignedByte();
+                int bottomColor = packetStream.readUnsignedByte();
+                int skinColor = packetStream.readUnsignedByte();
                 m_saveInfo.headType = headType;
                 m_saveInfo.top = top;
                 m_saveInfo.bottom = bottom;
@@ -653,21 +731,84 @@ public class Player extends Entity {
             }
             case OPCODE_DROP_ITEM:
                 m_actionSlot.setAction(ActionSlot.ACTION_INVENTORY_DROP);
-                m_actionSlot.setInventorySlot(m_packetStream.readUnsignedShort());
+                m_actionSlot.setInventorySlot(packetStream.readUnsignedShort());
                 break;
             default:
                 System.out.println("undefined opcode: " + opcode + ", length: " + length);
                 break;
             }
         }
+
+        // Resume reading if the packet queue was full
+        if (m_readSuspended && m_selectionKey != null) {
+            m_readSuspended = false;
+            Server.getInstance().getNetworkManager().resume(m_selectionKey);
+        }
+    }
+
+    public void handleWrite(SelectionKey key) {
+        int length;
+        try {
+            length = m_outboundQueue.write((SocketChannel)key.channel());
+        } catch (Exception e) {
+            closeSocket();
+            return;
+        }
+        Server.getInstance().getMetricsManager().addBytesOut(length);
+
+        if (m_outboundQueue.isEmpty())
+            key.interestOps(0);
+    }
+
+    public int getQueuedBytes() {
+        return m_outboundQueue.getQueuedBytes();
+    }
+
+    private void flushOutgoingStream() {
+        // Nobody to send to, discard this tick's packets
+        if (m_socket == null) {
+            m_outgoingStream.release();
+            return;
+        }
+
+        int length;
+        try {
+            length = m_outboundQueue.write(m_socket, m_outgoingStream);
+        } catch (Exception e) {
+            closeSocket();
+            return;
+        }
+        Server.getInstance().getMetricsManager().addBytesOut(length);
+
+        if (m_outboundQueue.isEmpty())
+            return;
+
+        // Client isn't keeping up with what we send
+        if (m_outboundQueue.getQueuedBytes() > OutboundQueue.MAX_QUEUED_BYTES) {
+            System.out.println("disconnecting slow client: " + getUsername() + ", queued: " + m_outboundQueue.getQueuedBytes());
+            closeSocket();
+            return;
+        }
+
+        // Send the rest once the socket is writable
+        try {
+            if (m_writeKey == null)
+                m_writeKey = m_socket.register(Server.getInstance().getSelector(), SelectionKey.OP_WRITE, this);
+            else
+                m_writeKey.interestOps(SelectionKey.OP_WRITE);
+        } catch (Exception e) {
+            closeSocket();
+        }
     }
 
     public void processOutgoingPackets() {
-        m_outgoingStream.flush(m_socket);
+        flushOutgoingStream();
 
         // Reset player update states
         m_updateAppearance = false;
+    }
 
+    public void processLogout() {
         // Player is logged out, remove them from the player list
         if (m_loggedOut)
             m_playerManager.removePlayer(m_index);
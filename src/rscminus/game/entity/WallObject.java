@@ -20,44 +20,49 @@
 package rscminus.game.entity;
 
 import rscminus.common.JGameData;
+import rscminus.game.Server;
 import rscminus.game.constants.Game;
-import rscminus.game.world.ViewArea;
+import rscminus.game.world.ObjectStore;
 
 public class WallObject extends Entity {
-    private int m_x;
-    private int m_y;
-    private int m_id;
-    private int m_direction;
-    private boolean m_update;
-    private ViewArea m_viewArea;
-
-    public WallObject(ViewArea view, int x, int y, int id, int direction) {
-        m_x = x;
-        m_y = y;
-        m_id = id;
-        m_direction = direction;
-        m_update = false;
-        m_viewArea = view;
+    private ObjectStore m_store;
+    private int m_handle;
+
+    public WallObject(ObjectStore store, int handle) {
+        m_store = store;
+        m_handle = handle;
+    }
+
+    public int getHandle() {
+        return m_handle;
     }
 
     public int getX() {
-        return m_x;
+        return m_store.getX(m_handle);
     }
 
     public int getY() {
-        return m_y;
+        return m_store.getY(m_handle);
     }
 
     public int getID() {
-        return m_id;
+        return m_store.getID(m_handle);
     }
 
     public int getDirection() {
-        return m_direction;
+        return m_store.getDirection(m_handle);
     }
 
     public int getExpectedCollisionMask() {
-        switch (getDirection()) {
+        return getExpectedCollisionMask(getDirection());
+    }
+
+    public int getCollisionMask() {
+        return getCollisionMask(getID(), getDirection());
+    }
+
+    public static int getExpectedCollisionMask(int direction) {
+        switch (direction) {
             case Game.DIRECTION_WALLOBJECT_NORTHSOUTH:
                 return Game.COLLISION_NORTHSOUTH;
             case Game.DIRECTION_WALLOBJECT_EASTWEST:
@@ -67,11 +72,11 @@ public class WallObject extends Entity {
         }
     }
 
-    public int getCollisionMask() {
-        if (JGameData.wallObjectPassable[getID() - 1])
+    public static int getCollisionMask(int id, int direction) {
+        if (JGameData.wallObjectPassable[id - 1])
             return Game.COLLISION_NONE;
 
-        return getExpectedCollisionMask();
+        return getExpectedCollisionMask(direction);
     }
 
     public boolean getInteractable(int directionX, int directionY) {
@@ -100,7 +105,6 @@ public class WallObject extends Entity {
     }
 
     public void setID(int id) {
-        m_id = id;
-        m_viewArea.update(this);
+        Server.getInstance().getWorldManager().setWallObjectID(m_handle, id);
     }
 }
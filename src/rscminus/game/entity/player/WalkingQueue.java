@@ -51,6 +51,18 @@ public class WalkingQueue {
         return m_nextDirection;
     }
 
+    public boolean isEmpty() {
+        return (m_count == 0);
+    }
+
+    public int getDestinationX() {
+        return m_x[m_count - 1];
+    }
+
+    public int getDestinationY() {
+        return m_y[m_count - 1];
+    }
+
     public boolean isFinished() {
         return (m_index == m_count);
     }
@@ -0,0 +1,110 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.game.world;
+
+import java.util.Arrays;
+
+/**
+ * World objects stored as parallel primitive arrays and addressed by an int handle. Handles are
+ * handed out in load order and never reused. GameObject and WallObject are thin views over a
+ * handle for the places that need an object.
+ */
+public class ObjectStore {
+    private short m_x[];
+    private short m_y[];
+    private short m_id[];
+    private byte m_direction[];
+    private boolean m_updated[];
+    private int m_count;
+
+    // Constants
+    public static final int INITIAL_CAPACITY = 1024;
+
+    // Array data per handle, boolean arrays take a byte per element
+    public static final int BYTES_PER_OBJECT = (3 * Short.BYTES) + Byte.BYTES + 1;
+
+    public ObjectStore() {
+        m_x = new short[INITIAL_CAPACITY];
+        m_y = new short[INITIAL_CAPACITY];
+        m_id = new short[INITIAL_CAPACITY];
+        m_direction = new byte[INITIAL_CAPACITY];
+        m_updated = new boolean[INITIAL_CAPACITY];
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity <= m_x.length)
+            return;
+
+        int size = m_x.length;
+        while (size < capacity)
+            size <<= 1;
+        m_x = Arrays.copyOf(m_x, size);
+        m_y = Arrays.copyOf(m_y, size);
+        m_id = Arrays.copyOf(m_id, size);
+        m_direction = Arrays.copyOf(m_direction, size);
+        m_updated = Arrays.copyOf(m_updated, size);
+    }
+
+    public int add(int x, int y, int id, int direction) {
+        ensureCapacity(m_count + 1);
+        int handle = m_count++;
+        m_x[handle] = (short)x;
+        m_y[handle] = (short)y;
+        m_id[handle] = (short)id;
+        m_direction[handle] = (byte)direction;
+        return handle;
+    }
+
+    public int getCount() {
+        return m_count;
+    }
+
+    public long getMemoryUsage() {
+        return (long)m_x.length * BYTES_PER_OBJECT;
+    }
+
+    public int getX(int handle) {
+        return m_x[handle] & 0xFFFF;
+    }
+
+    public int getY(int handle) {
+        return m_y[handle] & 0xFFFF;
+    }
+
+    public int getID(int handle) {
+        return m_id[handle] & 0xFFFF;
+    }
+
+    public void setID(int handle, int id) {
+        m_id[handle] = (short)id;
+    }
+
+    public int getDirection(int handle) {
+        return m_direction[handle] & 0xFF;
+    }
+
+    public boolean isUpdated(int handle) {
+        return m_updated[handle];
+    }
+
+    public void setUpdated(int handle, boolean updated) {
+        m_updated[handle] = updated;
+    }
+}
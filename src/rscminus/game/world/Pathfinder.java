@@ -0,0 +1,148 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.game.world;
+
+import rscminus.game.WorldManager;
+import rscminus.game.constants.Game;
+import rscminus.game.entity.player.WalkingQueue;
+
+import java.util.Arrays;
+
+/**
+ * Breadth first search outward from a destination over a SIZE x SIZE window centered on it. The
+ * search leaves a field holding, for every tile that can reach the destination, the step to take
+ * from it, so a route can be walked back from any start inside the window without searching again.
+ * Moves use the same collision checks as walking, so every route can be walked. A pathfinder is
+ * not thread safe, each thread should use its own.
+ */
+public class Pathfinder {
+    private byte m_field[];
+    private int m_queue[];
+    private int m_pathX[];
+    private int m_pathY[];
+    private int m_pathLength;
+
+    // Constants
+    public static final int SIZE = 104;
+    public static final int FIELD_SIZE = SIZE * SIZE;
+
+    // Field values, other values are a step direction plus one
+    public static final byte UNREACHED = 0;
+    public static final byte DESTINATION = -1;
+
+    // Cardinal moves come first so straight routes are preferred
+    private static final int DIRECTION_X[] = { 0, 0, -1, 1, -1, 1, -1, 1 };
+    private static final int DIRECTION_Y[] = { -1, 1, 0, 0, -1, -1, 1, 1 };
+    private static final int OPPOSITE[] = { 1, 0, 3, 2, 7, 6, 5, 4 };
+
+    public Pathfinder() {
+        m_field = new byte[FIELD_SIZE];
+        m_queue = new int[FIELD_SIZE];
+        m_pathX = new int[WalkingQueue.MAX_SIZE];
+        m_pathY = new int[WalkingQueue.MAX_SIZE];
+    }
+
+    public static boolean isInWindow(int startX, int startY, int destX, int destY) {
+        int localX = startX - destX + (SIZE / 2);
+        int localY = startY - destY + (SIZE / 2);
+        return localX >= 0 && localY >= 0 && localX < SIZE && localY < SIZE;
+    }
+
+    public byte[] getField() {
+        return m_field;
+    }
+
+    public int getPathLength() {
+        return m_pathLength;
+    }
+
+    public int getPathX(int index) {
+        return m_pathX[index];
+    }
+
+    public int getPathY(int index) {
+        return m_pathY[index];
+    }
+
+    public void search(WorldManager world, int destX, int destY) {
+        int baseX = destX - (SIZE / 2);
+        int baseY = destY - (SIZE / 2);
+        int floor = destY / Game.WORLD_Y_OFFSET;
+        Arrays.fill(m_field, UNREACHED);
+
+        int dest = ((SIZE / 2) * SIZE) + (SIZE / 2);
+        m_field[dest] = DESTINATION;
+        m_queue[0] = dest;
+        int head = 0;
+        int tail = 1;
+        while (head < tail) {
+            int tile = m_queue[head++];
+            int tileX = tile / SIZE;
+            int tileY = tile % SIZE;
+            for (int direction = 0; direction < DIRECTION_X.length; direction++) {
+                int nextX = tileX + DIRECTION_X[direction];
+                int nextY = tileY + DIRECTION_Y[direction];
+                if (nextX < 0 || nextY < 0 || nextX >= SIZE || nextY >= SIZE)
+                    continue;
+                int next = (nextX * SIZE) + nextY;
+                if (m_field[next] != UNREACHED)
+                    continue;
+                if ((baseY + nextY) / Game.WORLD_Y_OFFSET != floor)
+                    continue;
+
+                // The search runs backwards, so check the step from the neighbour onto this tile
+                int step = OPPOSITE[direction];
+                if (world.checkCollision(baseX + nextX, baseY + nextY, DIRECTION_X[step], DIRECTION_Y[step]))
+                    continue;
+
+                m_field[next] = (byte)(step + 1);
+                m_queue[tail++] = next;
+            }
+        }
+    }
+
+    /**
+     * Walks the route from the start to the destination a field was searched for. The field is
+     * read from the given offset, so it can be a copy held elsewhere.
+     */
+    public boolean walk(byte field[], int offset, int startX, int startY, int destX, int destY) {
+        m_pathLength = 0;
+        if (!isInWindow(startX, startY, destX, destY))
+            return false;
+
+        int tileX = startX - destX + (SIZE / 2);
+        int tileY = startY - destY + (SIZE / 2);
+        int tile = (tileX * SIZE) + tileY;
+        if (field[offset + tile] == UNREACHED)
+            return false;
+
+        // Waypoints are only needed where the route changes direction
+        while (field[offset + tile] != DESTINATION && m_pathLength < WalkingQueue.MAX_SIZE) {
+            int step = field[offset + tile] - 1;
+            tile += (DIRECTION_X[step] * SIZE) + DIRECTION_Y[step];
+            if (field[offset + tile] != step + 1) {
+                m_pathX[m_pathLength] = destX - (SIZE / 2) + (tile / SIZE);
+                m_pathY[m_pathLength] = destY - (SIZE / 2) + (tile % SIZE);
+                m_pathLength++;
+            }
+        }
+        return true;
+    }
+}
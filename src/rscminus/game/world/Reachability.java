@@ -0,0 +1,273 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+package rscminus.game.world;
+
+import rscminus.game.WorldManager;
+import rscminus.game.constants.Game;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Labels connected components of walkable tiles so unreachable destinations can be rejected
+ * without a search. Two open tiles are connected when a walk between them is allowed in either
+ * direction, which makes components a superset of what can really be walked, so a destination in
+ * another component is never reachable. Blocked tiles can't be walked onto and have no component.
+ *
+ * Tiles hold a component id, and ids are merged through a small union-find table. Opening a door
+ * merges the ids around it. Closing one floods outward from the door with a tile budget. When a
+ * flood finishes inside the budget it has found a component that was cut off, and its tiles get a
+ * new id. When it doesn't finish, its tiles are put back and the component is left whole, which
+ * stays safe to reject with. Labels are normally copied from the world image.
+ */
+public class Reachability {
+    private WorldManager m_world;
+    private IntBuffer m_labels;
+    private int m_alias[];
+    private int m_componentCount;
+    private int m_queue[];
+    private int m_splitQueue[];
+
+    // Constants
+    public static final int NONE = 0;
+    public static final int SPLIT_LIMIT = 16384;
+    public static final int INITIAL_QUEUE_SIZE = 1 << 16;
+    public static final int INITIAL_ALIAS_SIZE = 1024;
+
+    private static final int DIRECTION_X[] = { 0, 0, -1, 1, -1, 1, -1, 1 };
+    private static final int DIRECTION_Y[] = { -1, 1, 0, 0, -1, -1, 1, 1 };
+
+    public Reachability(WorldManager world) {
+        m_world = world;
+        m_splitQueue = new int[SPLIT_LIMIT];
+    }
+
+    private static int getIndex(int x, int y) {
+        return (x * Game.WORLD_HEIGHT) + y;
+    }
+
+    private static boolean isInside(int x, int y) {
+        return x >= 0 && y >= 0 && x < Game.WORLD_WIDTH && y < Game.WORLD_HEIGHT;
+    }
+
+    private boolean isOpen(int x, int y) {
+        return (m_world.getCollisionMask(x, y) & Game.COLLISION_TILE) == 0;
+    }
+
+    private boolean isConnected(int x, int y, int directionX, int directionY) {
+        int nextX = x + directionX;
+        int nextY = y + directionY;
+        if (!isInside(nextX, nextY) || nextY / Game.WORLD_Y_OFFSET != y / Game.WORLD_Y_OFFSET || !isOpen(nextX, nextY))
+            return false;
+        return !m_world.checkCollision(x, y, directionX, directionY) || !m_world.checkCollision(nextX, nextY, -directionX, -directionY);
+    }
+
+    private int createComponent() {
+        if (++m_componentCount == m_alias.length)
+            m_alias = Arrays.copyOf(m_alias, m_alias.length * 2);
+        m_alias[m_componentCount] = m_componentCount;
+        return m_componentCount;
+    }
+
+    private int find(int component) {
+        while (m_alias[component] != component) {
+            m_alias[component] = m_alias[m_alias[component]];
+            component = m_alias[component];
+        }
+        return component;
+    }
+
+    private void union(int a, int b) {
+        a = find(a);
+        b = find(b);
+        if (a != b)
+            m_alias[Math.max(a, b)] = Math.min(a, b);
+    }
+
+    private void flood(int seed, int component) {
+        int mask = m_queue.length - 1;
+        int head = 0;
+        int tail = 0;
+        m_labels.put(seed, component);
+        m_queue[tail++ & mask] = seed;
+        while (head != tail) {
+            int tile = m_queue[head++ & mask];
+            int x = tile / Game.WORLD_HEIGHT;
+            int y = tile % Game.WORLD_HEIGHT;
+            for (int direction = 0; direction < DIRECTION_X.length; direction++) {
+                int directionX = DIRECTION_X[direction];
+                int directionY = DIRECTION_Y[direction];
+                int next = getIndex(x + directionX, y + directionY);
+                if (!isConnected(x, y, directionX, directionY) || m_labels.get(next) == component)
+                    continue;
+
+                // The queue is a ring that doubles in place when the frontier outgrows it
+                if (tail - head == m_queue.length) {
+                    int queue[] = new int[m_queue.length * 2];
+                    for (int i = 0; i < m_queue.length; i++)
+                        queue[i] = m_queue[(head + i) & mask];
+                    m_queue = queue;
+                    mask = m_queue.length - 1;
+                    tail -= head;
+                    head = 0;
+                }
+                m_labels.put(next, component);
+                m_queue[tail++ & mask] = next;
+            }
+        }
+    }
+
+    /**
+     * Labels every tile reachable from the seed with the component if there are at most
+     * SPLIT_LIMIT of them. Otherwise the tiles get their old label back and the seeds the flood
+     * passed through are returned as a mask over the 3x3 block centred on x, y, so they aren't
+     * tried again. Returns 0 when the flood finished.
+     */
+    private int split(int seed, int component, int label, int x, int y) {
+        int passed = 0;
+        int head = 0;
+        int tail = 0;
+        m_labels.put(seed, component);
+        m_splitQueue[tail++] = seed;
+        while (head != tail) {
+            int tile = m_splitQueue[head++];
+            int tileX = tile / Game.WORLD_HEIGHT;
+            int tileY = tile % Game.WORLD_HEIGHT;
+            if (Math.abs(tileX - x) <= 1 && Math.abs(tileY - y) <= 1)
+                passed |= 1 << (((tileX - x + 1) * 3) + (tileY - y + 1));
+            for (int direction = 0; direction < DIRECTION_X.length; direction++) {
+                int directionX = DIRECTION_X[direction];
+                int directionY = DIRECTION_Y[direction];
+                int next = getIndex(tileX + directionX, tileY + directionY);
+                if (!isConnected(tileX, tileY, directionX, directionY) || m_labels.get(next) == component)
+                    continue;
+
+                // Every labelled tile is still in the queue, so they can be put back in one pass
+                if (tail == SPLIT_LIMIT) {
+                    for (int i = 0; i < tail; i++)
+                        m_labels.put(m_splitQueue[i], label);
+                    return passed;
+                }
+                m_labels.put(next, component);
+                m_splitQueue[tail++] = next;
+            }
+        }
+        return 0;
+    }
+
+    public void init() {
+        long start = System.nanoTime();
+        m_labels = IntBuffer.allocate(Game.WORLD_WIDTH * Game.WORLD_HEIGHT);
+        m_alias = new int[INITIAL_ALIAS_SIZE];
+        m_queue = new int[INITIAL_QUEUE_SIZE];
+        m_componentCount = 0;
+        for (int x = 0; x < Game.WORLD_WIDTH; x++) {
+            for (int y = 0; y < Game.WORLD_HEIGHT; y++) {
+                int index = getIndex(x, y);
+                if (m_labels.get(index) == NONE && isOpen(x, y))
+                    flood(index, createComponent());
+            }
+        }
+        m_queue = null;
+        System.out.println("reachability: " + m_componentCount + " components in " + ((System.nanoTime() - start) / 1000000) + "ms");
+    }
+
+    public void init(IntBuffer labels, int componentCount) {
+        // Compiled labels have no merged components yet
+        m_labels = labels;
+        m_componentCount = componentCount;
+        m_alias = new int[Math.max(INITIAL_ALIAS_SIZE, Integer.highestOneBit(componentCount) << 1)];
+        for (int i = 0; i <= componentCount; i++)
+            m_alias[i] = i;
+        System.out.println("reachability: " + m_componentCount + " components");
+    }
+
+    public int getComponentCount() {
+        return m_componentCount;
+    }
+
+    public synchronized int getComponent(int x, int y) {
+        int label = m_labels.get(getIndex(x, y));
+        return (label == NONE) ? NONE : find(label);
+    }
+
+    public synchronized boolean isReachable(int startX, int startY, int destX, int destY) {
+        if (m_labels == null || (startX == destX && startY == destY))
+            return true;
+        if (!isInside(destX, destY))
+            return false;
+        int destination = m_labels.get(getIndex(destX, destY));
+        if (destination == NONE)
+            return false;
+
+        // Players can stand on tiles they couldn't walk onto, those can't be judged
+        if (!isInside(startX, startY) || m_labels.get(getIndex(startX, startY)) == NONE)
+            return true;
+        return find(m_labels.get(getIndex(startX, startY))) == find(destination);
+    }
+
+    public synchronized void update(int x, int y, int previousMask, int mask) {
+        if (m_labels == null)
+            return;
+
+        // Tiles that open up start as their own component and join their neighbours below
+        int index = getIndex(x, y);
+        if (!isOpen(x, y))
+            m_labels.put(index, NONE);
+        else if (m_labels.get(index) == NONE)
+            m_labels.put(index, createComponent());
+
+        // Wall masks of this tile decide the edges of every move that passes next to it
+        if ((previousMask & ~mask) != 0) {
+            for (int tileX = x - 1; tileX <= x + 1; tileX++) {
+                for (int tileY = y - 1; tileY <= y + 1; tileY++) {
+                    if (!isInside(tileX, tileY) || m_labels.get(getIndex(tileX, tileY)) == NONE)
+                        continue;
+                    for (int direction = 0; direction < DIRECTION_X.length; direction++) {
+                        if (isConnected(tileX, tileY, DIRECTION_X[direction], DIRECTION_Y[direction]))
+                            union(m_labels.get(getIndex(tileX, tileY)), m_labels.get(getIndex(tileX + DIRECTION_X[direction], tileY + DIRECTION_Y[direction])));
+                    }
+                }
+            }
+        }
+
+        if ((mask & ~previousMask) != 0) {
+            int firstComponent = m_componentCount + 1;
+            int passed = 0;
+            for (int tileX = x - 1; tileX <= x + 1; tileX++) {
+                for (int tileY = y - 1; tileY <= y + 1; tileY++) {
+                    if (!isInside(tileX, tileY) || (passed & (1 << (((tileX - x + 1) * 3) + (tileY - y + 1)))) != 0)
+                        continue;
+                    int tile = getIndex(tileX, tileY);
+                    int label = m_labels.get(tile);
+                    if (label == NONE || label >= firstComponent)
+                        continue;
+
+                    // Floods that run out of budget reuse the id for the next seed
+                    int component = createComponent();
+                    int result = split(tile, component, label, x, y);
+                    if (result != 0) {
+                        passed |= result;
+                        m_componentCount--;
+                    }
+                }
+            }
+        }
+    }
+}
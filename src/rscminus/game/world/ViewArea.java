@@ -19,103 +19,225 @@
 
 package rscminus.game.world;
 
+import rscminus.common.IndexList;
 import rscminus.game.PacketBuilder;
+import rscminus.game.WorldManager;
 import rscminus.game.entity.GameObject;
 import rscminus.game.entity.Player;
 import rscminus.game.entity.WallObject;
 
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Arrays;
 
 public class ViewArea {
-    private LinkedList<Player> m_players;
-    private LinkedList<GameObject> m_objects;
-    private LinkedList<WallObject> m_wallObjects;
-    private HashSet<Player> m_playerUpdates;
-    private HashSet<GameObject> m_objectUpdates;
-    private HashSet<WallObject> m_wallObjectUpdates;
-
-    public ViewArea() {
-        m_players = new LinkedList<Player>();
-        m_objects = new LinkedList<GameObject>();
-        m_wallObjects = new LinkedList<WallObject>();
-        m_playerUpdates = new HashSet<Player>();
-        m_objectUpdates = new HashSet<GameObject>();
-        m_wallObjectUpdates = new HashSet<WallObject>();
-    }
-
-    public LinkedList<Player> getPlayers() {
+    private WorldManager m_worldManager;
+    private ObjectStore m_objectStore;
+    private ObjectStore m_wallObjectStore;
+    private IndexList m_players;
+    private int m_objects[];
+    private int m_wallObjects[];
+    private int m_objectUpdates[];
+    private int m_wallObjectUpdates[];
+    private int m_objectCount;
+    private int m_wallObjectCount;
+    private int m_objectUpdateCount;
+    private int m_wallObjectUpdateCount;
+    private int m_objectTiles[];
+    private int m_wallObjectTiles[];
+    private int m_wallObjectDirections[];
+
+    // Tile index constants
+    public static final int SIZE = 8;
+    public static final int TILE_COUNT = SIZE * SIZE;
+    public static final int WALL_DIRECTIONS = 4;
+    public static final int NONE = -1;
+
+    // Initial object array size, arrays double when full
+    public static final int INITIAL_OBJECT_CAPACITY = 4;
+
+    public ViewArea(WorldManager worldManager, IndexList players) {
+        m_worldManager = worldManager;
+        m_objectStore = worldManager.getObjectStore();
+        m_wallObjectStore = worldManager.getWallObjectStore();
+        m_players = new IndexList(players);
+    }
+
+    private static int getTileIndex(int x, int y) {
+        return ((x & (SIZE - 1)) * SIZE) + (y & (SIZE - 1));
+    }
+
+    private static int[] createTileIndex(int size) {
+        int index[] = new int[size];
+        Arrays.fill(index, NONE);
+        return index;
+    }
+
+    public IndexList getPlayers() {
         return m_players;
     }
 
-    public void add(GameObject gameObject) {
-        m_objects.add(gameObject);
-    }
-
-    public void add(WallObject wallObject) {
-        m_wallObjects.add(wallObject);
+    public int getObjectCount() {
+        return m_objectCount;
+    }
+
+    public int getWallObjectCount() {
+        return m_wallObjectCount;
+    }
+
+    public long getMemoryUsage() {
+        long size = 0;
+        if (m_objects != null)
+            size += m_objects.length + m_objectUpdates.length + m_objectTiles.length;
+        if (m_wallObjects != null)
+            size += m_wallObjects.length + m_wallObjectUpdates.length + m_wallObjectTiles.length + m_wallObjectDirections.length;
+        return size * Integer.BYTES;
+    }
+
+    public void addObject(int handle) {
+        // Most areas are empty, so object arrays and tile indexes are only allocated once something is added
+        if (m_objects == null) {
+            m_objects = new int[INITIAL_OBJECT_CAPACITY];
+            m_objectUpdates = new int[INITIAL_OBJECT_CAPACITY];
+            m_objectTiles = createTileIndex(TILE_COUNT);
+        } else if (m_objectCount == m_objects.length) {
+            m_objects = Arrays.copyOf(m_objects, m_objectCount * 2);
+            m_objectUpdates = Arrays.copyOf(m_objectUpdates, m_objectCount * 2);
+        }
+        m_objects[m_objectCount++] = handle;
+
+        // Lookups return the first object added on a tile
+        int index = getTileIndex(m_objectStore.getX(handle), m_objectStore.getY(handle));
+        if (m_objectTiles[index] == NONE)
+            m_objectTiles[index] = handle;
+    }
+
+    public void addWallObject(int handle) {
+        if (m_wallObjects == null) {
+            m_wallObjects = new int[INITIAL_OBJECT_CAPACITY];
+            m_wallObjectUpdates = new int[INITIAL_OBJECT_CAPACITY];
+            m_wallObjectTiles = createTileIndex(TILE_COUNT);
+            m_wallObjectDirections = createTileIndex(TILE_COUNT * WALL_DIRECTIONS);
+        } else if (m_wallObjectCount == m_wallObjects.length) {
+            m_wallObjects = Arrays.copyOf(m_wallObjects, m_wallObjectCount * 2);
+            m_wallObjectUpdates = Arrays.copyOf(m_wallObjectUpdates, m_wallObjectCount * 2);
+        }
+        m_wallObjects[m_wallObjectCount++] = handle;
+
+        int index = getTileIndex(m_wallObjectStore.getX(handle), m_wallObjectStore.getY(handle));
+        if (m_wallObjectTiles[index] == NONE)
+            m_wallObjectTiles[index] = handle;
+        int direction = m_wallObjectStore.getDirection(handle);
+        if (direction < WALL_DIRECTIONS) {
+            index = (index * WALL_DIRECTIONS) + direction;
+            if (m_wallObjectDirections[index] == NONE)
+                m_wallObjectDirections[index] = handle;
+        }
     }
 
     public void add(Player player) {
-        m_players.add(player);
+        m_players.add(player.getIndex());
     }
 
     public void remove(Player player) {
-        m_players.remove(player);
+        m_players.remove(player.getIndex());
+    }
+
+    private boolean isDirty() {
+        return (m_objectUpdateCount + m_wallObjectUpdateCount) > 0;
     }
 
-    public void update(WallObject wallObject) {
-        m_wallObjectUpdates.add(wallObject);
+    // Players on a shard edge can change objects in a neighbouring shard's areas
+    public synchronized void updateWallObject(int handle) {
+        // The update flag keeps an object from being queued twice in a tick
+        if (m_wallObjectStore.isUpdated(handle))
+            return;
+        if (!isDirty())
+            m_worldManager.addDirtyViewArea(this);
+        m_wallObjectStore.setUpdated(handle, true);
+        m_wallObjectUpdates[m_wallObjectUpdateCount++] = handle;
     }
 
-    public void update(GameObject obj) {
-        m_objectUpdates.add(obj);
+    public synchronized void updateObject(int handle) {
+        if (m_objectStore.isUpdated(handle))
+            return;
+        if (!isDirty())
+            m_worldManager.addDirtyViewArea(this);
+        m_objectStore.setUpdated(handle, true);
+        m_objectUpdates[m_objectUpdateCount++] = handle;
     }
 
     public void clearUpdates() {
-        m_playerUpdates.clear();
-        m_objectUpdates.clear();
-        m_wallObjectUpdates.clear();
+        for (int i = 0; i < m_objectUpdateCount; i++)
+            m_objectStore.setUpdated(m_objectUpdates[i], false);
+        for (int i = 0; i < m_wallObjectUpdateCount; i++)
+            m_wallObjectStore.setUpdated(m_wallObjectUpdates[i], false);
+        m_objectUpdateCount = 0;
+        m_wallObjectUpdateCount = 0;
+    }
+
+    private void writeObject(Player player, int handle) {
+        PacketBuilder.addObjectUpdate(player, m_objectStore.getID(handle), m_objectStore.getX(handle), m_objectStore.getY(handle),
+                player.getNetworkStream());
+    }
+
+    private void writeWallObject(Player player, int handle) {
+        PacketBuilder.addWallObjectUpdate(player, m_wallObjectStore.getID(handle), m_wallObjectStore.getX(handle), m_wallObjectStore.getY(handle),
+                m_wallObjectStore.getDirection(handle), player.getNetworkStream());
     }
 
     public void writeObjects(Player player) {
-        for (GameObject obj : m_objects)
-            PacketBuilder.addObjectUpdate(player, obj, player.getNetworkStream(), player.getISAACCipher());
+        for (int i = 0; i < m_objectCount; i++)
+            writeObject(player, m_objects[i]);
     }
 
     public void writeWallObjects(Player player) {
-        for (WallObject wallObj : m_wallObjects)
-            PacketBuilder.addWallObjectUpdate(player, wallObj, player.getNetworkStream(), player.getISAACCipher());
+        for (int i = 0; i < m_wallObjectCount; i++)
+            writeWallObject(player, m_wallObjects[i]);
     }
 
     public void updateObjects(Player player) {
-        for (GameObject obj : m_objectUpdates)
-            PacketBuilder.addObjectUpdate(player, obj, player.getNetworkStream(), player.getISAACCipher());
+        for (int i = 0; i < m_objectUpdateCount; i++)
+            writeObject(player, m_objectUpdates[i]);
     }
 
     public void updateWallObjects(Player player) {
-        for (WallObject wallObj : m_wallObjectUpdates)
-            PacketBuilder.addWallObjectUpdate(player, wallObj, player.getNetworkStream(), player.getISAACCipher());
+        for (int i = 0; i < m_wallObjectUpdateCount; i++)
+            writeWallObject(player, m_wallObjectUpdates[i]);
+    }
+
+    public int getWallObjectHandle(int x, int y) {
+        if (m_wallObjectTiles == null)
+            return NONE;
+        return m_wallObjectTiles[getTileIndex(x, y)];
+    }
+
+    public int getWallObjectHandle(int x, int y, int direction) {
+        // Directions outside the tile index are rare enough to scan for
+        if (direction < 0 || direction >= WALL_DIRECTIONS) {
+            for (int i = 0; i < m_wallObjectCount; i++) {
+                int handle = m_wallObjects[i];
+                if (m_wallObjectStore.getX(handle) == x && m_wallObjectStore.getY(handle) == y && m_wallObjectStore.getDirection(handle) == direction)
+                    return handle;
+            }
+            return NONE;
+        }
+        if (m_wallObjectDirections == null)
+            return NONE;
+        return m_wallObjectDirections[(getTileIndex(x, y) * WALL_DIRECTIONS) + direction];
     }
 
-    public WallObject getWallObject(int x, int y) {
-        for (WallObject wallObj : m_wallObjects)
-            if (wallObj.getX() == x && wallObj.getY() == y)
-                return wallObj;
-        return null;
+    public int getObjectHandle(int x, int y) {
+        if (m_objectTiles == null)
+            return NONE;
+        return m_objectTiles[getTileIndex(x, y)];
     }
 
     public WallObject getWallObject(int x, int y, int direction) {
-        for (WallObject wallObj : m_wallObjects)
-            if (wallObj.getX() == x && wallObj.getY() == y && wallObj.getDirection() == direction)
-                return wallObj;
-        return null;
+        int handle = getWallObjectHandle(x, y, direction);
+        return (handle != NONE) ? new WallObject(m_wallObjectStore, handle) : null;
     }
 
     public GameObject getObject(int x, int y) {
-        for (GameObject obj : m_objects)
-            if (obj.getX() == x && obj.getY() == y)
-                return obj;
-        return null;
+        int handle = getObjectHandle(x, y);
+        return (handle != NONE) ? new GameObject(m_objectStore, handle) : null;
     }
 }
@@ -19,31 +19,53 @@
 
 package rscminus.game.world;
 
+import rscminus.common.IndexList;
 import rscminus.game.PacketBuilder;
+import rscminus.game.PlayerManager;
+import rscminus.game.Server;
+import rscminus.game.ShardManager;
 import rscminus.game.WorldManager;
 import rscminus.game.entity.Player;
 
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.BitSet;
 
 public class ViewRegion {
     public static final int VIEW_DISTANCE = 5;
 
-    private LinkedList<Player> m_localPlayers;
+    private BitSet m_localPlayers;
     private WorldManager m_worldManager;
+    private PlayerManager m_playerManager;
+    private ShardManager m_shardManager;
     private ViewArea m_viewArea[][];
+    private boolean m_entering[][];
+    private ViewArea m_leaving[];
+    private int m_leavingX[];
+    private int m_leavingY[];
+    private int m_leavingCount;
+    private int m_viewX;
+    private int m_viewY;
     private boolean m_update;
 
-    public ViewRegion(WorldManager worldManager) {
+    public ViewRegion(WorldManager worldManager, PlayerManager playerManager) {
         m_worldManager = worldManager;
+        m_playerManager = playerManager;
+        m_shardManager = Server.getInstance().getShardManager();
         m_viewArea = new ViewArea[VIEW_DISTANCE][VIEW_DISTANCE];
-        m_localPlayers = new LinkedList<Player>();
+        m_entering = new boolean[VIEW_DISTANCE][VIEW_DISTANCE];
+        m_leaving = new ViewArea[VIEW_DISTANCE * VIEW_DISTANCE];
+        m_leavingX = new int[VIEW_DISTANCE * VIEW_DISTANCE];
+        m_leavingY = new int[VIEW_DISTANCE * VIEW_DISTANCE];
+        m_localPlayers = new BitSet();
     }
 
     public void clear() {
-        for (int x = 0; x < VIEW_DISTANCE; x++)
-            for (int y = 0; y < VIEW_DISTANCE; y++)
+        for (int x = 0; x < VIEW_DISTANCE; x++) {
+            for (int y = 0; y < VIEW_DISTANCE; y++) {
                 m_viewArea[x][y] = null;
+                m_entering[x][y] = false;
+            }
+        }
+        clearLeaving();
         m_update = false;
         m_localPlayers.clear();
     }
@@ -55,31 +77,68 @@ public class ViewRegion {
 
         ViewArea view = m_worldManager.getViewArea(viewX, viewY);
         if (m_viewArea[index][index] != view) {
-            if (m_viewArea[index][index] != null)
+            boolean previous = (m_viewArea[index][index] != null);
+            if (previous) {
                 m_viewArea[index][index].remove(player);
+
+                // Areas that fall out of the window have their objects removed on the client
+                for (int x = 0; x < VIEW_DISTANCE; x++) {
+                    for (int y = 0; y < VIEW_DISTANCE; y++) {
+                        int areaX = m_viewX + (x - index);
+                        int areaY = m_viewY + (y - index);
+                        if (m_viewArea[x][y] != null && (Math.abs(areaX - viewX) > index || Math.abs(areaY - viewY) > index)) {
+                            m_leaving[m_leavingCount] = m_viewArea[x][y];
+                            m_leavingX[m_leavingCount] = areaX;
+                            m_leavingY[m_leavingCount] = areaY;
+                            m_leavingCount++;
+                        }
+                    }
+                }
+            }
             for (int x = 0; x < VIEW_DISTANCE; x++) {
                 for (int y = 0; y < VIEW_DISTANCE; y++) {
                     int updateX = viewX + (x - index);
                     int updateY = viewY + (y - index);
                     m_viewArea[x][y] = m_worldManager.getViewArea(updateX, updateY);
+
+                    // Only areas that weren't already visible need their objects sent in full
+                    m_entering[x][y] = !previous || Math.abs(updateX - m_viewX) > index || Math.abs(updateY - m_viewY) > index;
                 }
             }
-            m_viewArea[index][index].add(player);
+            m_viewX = viewX;
+            m_viewY = viewY;
             m_update = true;
+
+            // Areas in another shard are joined once every shard has finished processing
+            if (!m_shardManager.handoff(player, viewX, viewY))
+                enter(player);
         }
     }
 
+    public void enter(Player player) {
+        int index = VIEW_DISTANCE / 2;
+        m_viewArea[index][index].add(player);
+    }
+
+    private void clearLeaving() {
+        for (int i = 0; i < m_leavingCount; i++)
+            m_leaving[i] = null;
+        m_leavingCount = 0;
+    }
+
     public void sendUpdate(Player player) {
-        for (Iterator<Player> otherPlayer = m_localPlayers.iterator(); otherPlayer.hasNext();) {
-            if (otherPlayer.next().getDistance(player) > 15)
-                otherPlayer.remove();
+        for (int i = m_localPlayers.nextSetBit(0); i >= 0; i = m_localPlayers.nextSetBit(i + 1)) {
+            if (m_playerManager.getPlayer(i).getDistance(player) > 15)
+                m_localPlayers.clear(i);
         }
 
         PacketBuilder.startCreatePlayers(player, player.getNetworkStream(), player.getISAACCipher());
         for (int x = 0; x < VIEW_DISTANCE; x++) {
             for (int y = 0; y < VIEW_DISTANCE; y++) {
                 if (m_viewArea[x][y] != null) {
-                    for (Player otherPlayer : m_viewArea[x][y].getPlayers()) {
+                    IndexList players = m_viewArea[x][y].getPlayers();
+                    for (int i = players.getFirst(); i != IndexList.NONE; i = players.getNext(i)) {
+                        Player otherPlayer = m_playerManager.getPlayer(i);
                         if (otherPlayer == player)
                             continue;
 
@@ -95,12 +154,14 @@ public class ViewRegion {
         for (int x = 0; x < VIEW_DISTANCE; x++) {
             for (int y = 0; y < VIEW_DISTANCE; y++) {
                 if (m_viewArea[x][y] != null) {
-                    for (Player otherPlayer : m_viewArea[x][y].getPlayers()) {
-                        if (m_localPlayers.contains(otherPlayer) && otherPlayer.getDistance(player) <= 15) {
+                    IndexList players = m_viewArea[x][y].getPlayers();
+                    for (int i = players.getFirst(); i != IndexList.NONE; i = players.getNext(i)) {
+                        Player otherPlayer = m_playerManager.getPlayer(i);
+                        if (m_localPlayers.get(i) && otherPlayer.getDistance(player) <= 15) {
                             otherPlayer.processPlayerUpdate(player.getNetworkStream());
                         } else {
-                            PacketBuilder.addPlayerUpdateAppearance(otherPlayer, player.getNetworkStream());
-                            m_localPlayers.add(otherPlayer);
+                            PacketBuilder.addPlayerUpdateBlock(otherPlayer.getUpdateBlock(), player.getNetworkStream());
+                            m_localPlayers.set(i);
                         }
                     }
                 }
@@ -108,41 +169,46 @@ public class ViewRegion {
         }
         PacketBuilder.endPlayerUpdate(player.getNetworkStream());
 
-        if (m_update) {
-            PacketBuilder.startObjectUpdate(player.getNetworkStream(), player.getISAACCipher());
-            for (int x = 0; x < VIEW_DISTANCE; x++) {
-                for (int y = 0; y < VIEW_DISTANCE; y++) {
-                    if (m_viewArea[x][y] != null)
-                        m_viewArea[x][y].writeObjects(player);
-                }
+        PacketBuilder.startObjectUpdate(player.getNetworkStream(), player.getISAACCipher());
+        for (int i = 0; i < m_leavingCount; i++) {
+            if (m_leaving[i].getObjectCount() > 0)
+                PacketBuilder.addAreaRemoval(player, m_leavingX[i], m_leavingY[i], player.getNetworkStream());
+        }
+        for (int x = 0; x < VIEW_DISTANCE; x++) {
+            for (int y = 0; y < VIEW_DISTANCE; y++) {
+                if (m_viewArea[x][y] == null)
+                    continue;
+                if (m_entering[x][y])
+                    m_viewArea[x][y].writeObjects(player);
+                else
+                    m_viewArea[x][y].updateObjects(player);
             }
-            PacketBuilder.endObjectUpdate(player.getNetworkStream());
-            PacketBuilder.startWallObjectUpdate(player.getNetworkStream(), player.getISAACCipher());
-            for (int x = 0; x < VIEW_DISTANCE; x++) {
-                for (int y = 0; y < VIEW_DISTANCE; y++) {
-                    if (m_viewArea[x][y] != null)
-                        m_viewArea[x][y].writeWallObjects(player);
-                }
+        }
+        PacketBuilder.endObjectUpdate(player.getNetworkStream());
+
+        PacketBuilder.startWallObjectUpdate(player.getNetworkStream(), player.getISAACCipher());
+        for (int i = 0; i < m_leavingCount; i++) {
+            if (m_leaving[i].getWallObjectCount() > 0)
+                PacketBuilder.addAreaRemoval(player, m_leavingX[i], m_leavingY[i], player.getNetworkStream());
+        }
+        for (int x = 0; x < VIEW_DISTANCE; x++) {
+            for (int y = 0; y < VIEW_DISTANCE; y++) {
+                if (m_viewArea[x][y] == null)
+                    continue;
+                if (m_entering[x][y])
+                    m_viewArea[x][y].writeWallObjects(player);
+                else
+                    m_viewArea[x][y].updateWallObjects(player);
             }
-            PacketBuilder.endWallObjectUpdate(player.getNetworkStream());
+        }
+        PacketBuilder.endWallObjectUpdate(player.getNetworkStream());
+
+        if (m_update) {
+            for (int x = 0; x < VIEW_DISTANCE; x++)
+                for (int y = 0; y < VIEW_DISTANCE; y++)
+                    m_entering[x][y] = false;
+            clearLeaving();
             m_update = false;
-        } else {
-            PacketBuilder.startObjectUpdate(player.getNetworkStream(), player.getISAACCipher());
-            for (int x = 0; x < VIEW_DISTANCE; x++) {
-                for (int y = 0; y < VIEW_DISTANCE; y++) {
-                    if (m_viewArea[x][y] != null)
-                        m_viewArea[x][y].updateObjects(player);
-                }
-            }
-            PacketBuilder.endObjectUpdate(player.getNetworkStream());
-            PacketBuilder.startWallObjectUpdate(player.getNetworkStream(), player.getISAACCipher());
-            for (int x = 0; x < VIEW_DISTANCE; x++) {
-                for (int y = 0; y < VIEW_DISTANCE; y++) {
-                    if (m_viewArea[x][y] != null)
-                        m_viewArea[x][y].updateWallObjects(player);
-                }
-            }
-            PacketBuilder.endWallObjectUpdate(player.getNetworkStream());
         }
     }
 }
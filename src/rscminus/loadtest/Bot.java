@@ -0,0 +1,286 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.loadtest;
+
+import rscminus.common.Crypto;
+import rscminus.common.ISAACCipher;
+import rscminus.common.SocketUtil;
+import rscminus.game.NetworkStream;
+import rscminus.game.QueuedPlayer;
+import rscminus.game.entity.Player;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Bot {
+    private int m_index;
+    private int m_state;
+    private SocketChannel m_socket;
+    private SelectionKey m_key;
+    private NetworkStream m_stream;
+    private NetworkStream m_blockStream;
+    private ByteBuffer m_readBuffer;
+    private ISAACCipher m_isaacOutgoing;
+    private Random m_random;
+    private long m_connectTime;
+    private long m_nextWalk;
+    private long m_nextInteract;
+    private long m_nextKeepAlive;
+    private long m_lastRead;
+    private long m_burstStart;
+    private int m_burstBytes;
+
+    // States
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_LOGIN = 2;
+    public static final int STATE_ONLINE = 3;
+    public static final int STATE_CLOSED = 4;
+
+    // Login block
+    public static final int CLIENT_VERSION = 235;
+    public static final int LOGIN_BLOCK_OPCODE = 10;
+    public static final int XTEA_BLOCK_PADDING = 25;
+
+    // Reads closer together than this belong to the same server tick
+    public static final long TICK_BURST_GAP = 100000000L;
+
+    // Bots walk around the default spawn point
+    public static final int SPAWN_X = 61;
+    public static final int SPAWN_Y = 440;
+    public static final int WALK_RADIUS = 8;
+
+    public Bot(int index) {
+        m_index = index;
+        m_state = STATE_IDLE;
+        m_stream = new NetworkStream();
+        m_blockStream = new NetworkStream();
+        m_readBuffer = ByteBuffer.allocate(NetworkStream.DEFAULT_SIZE);
+        m_isaacOutgoing = new ISAACCipher();
+        m_random = new Random(index);
+    }
+
+    public int getState() {
+        return m_state;
+    }
+
+    public String getUsername() {
+        return "bot" + m_index;
+    }
+
+    public void connect(Selector selector, InetSocketAddress address, long now) {
+        m_connectTime = now;
+        m_state = STATE_CONNECTING;
+        try {
+            m_socket = SocketChannel.open();
+            m_socket.configureBlocking(false);
+            m_socket.socket().setTcpNoDelay(true);
+            boolean connected = m_socket.connect(address);
+            m_key = m_socket.register(selector, SelectionKey.OP_CONNECT, this);
+            if (connected)
+                handleConnect(now);
+        } catch (Exception e) {
+            close(LoadStats.failed);
+        }
+    }
+
+    public void handleConnect(long now) throws Exception {
+        m_socket.finishConnect();
+        m_key.interestOps(SelectionKey.OP_READ);
+        m_state = STATE_LOGIN;
+        sendLogin();
+    }
+
+    private byte[] getBlock() {
+        byte data[] = new byte[m_blockStream.getPosition()];
+        m_blockStream.seek(0);
+        m_blockStream.readArray(data, 0, data.length);
+        m_blockStream.flip();
+        return data;
+    }
+
+    private void sendLogin() throws Exception {
+        int keys[] = new int[4];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = m_random.nextInt();
+
+        // RSA block, session keys and password
+        m_blockStream.flip();
+        m_blockStream.writeUnsignedByte(LOGIN_BLOCK_OPCODE);
+        for (int i = 0; i < keys.length; i++)
+            m_blockStream.writeUnsignedInt(keys[i]);
+        m_blockStream.writeString("password");
+        byte block[] = getBlock();
+        byte rsaBlock[] = Crypto.encryptRSA(block, 0, block.length);
+
+        // XTEA block, padded to whole blocks so the username is encrypted too
+        m_blockStream.skip(XTEA_BLOCK_PADDING);
+        m_blockStream.writeString(getUsername());
+        while ((m_blockStream.getPosition() & 7) != 0)
+            m_blockStream.writeUnsignedByte(0);
+        byte xteaBlock[] = getBlock();
+        Crypto.encryptXTEAInPlace(xteaBlock, 0, xteaBlock.length, keys);
+
+        m_stream.startPacket();
+        m_stream.writeUnsignedByte(0);
+        m_stream.writeUnsignedByte(0);
+        m_stream.writeUnsignedInt(CLIENT_VERSION);
+        m_stream.writeUnsignedShort(rsaBlock.length);
+        m_stream.writeArray(rsaBlock, 0, rsaBlock.length);
+        m_stream.writeUnsignedShort(xteaBlock.length);
+        m_stream.writeArray(xteaBlock, 0, xteaBlock.length);
+        m_stream.endPacket();
+        flush();
+
+        m_isaacOutgoing.setKeys(keys);
+    }
+
+    public void handleRead(long now) throws Exception {
+        int length = 0;
+        int offset = 0;
+        int response = 0;
+        int read;
+        m_readBuffer.clear();
+        while ((read = m_socket.read(m_readBuffer)) > 0) {
+            if (length == 0)
+                response = m_readBuffer.get(0) & 0xFF;
+            length += read;
+            m_readBuffer.clear();
+        }
+        if (read < 0) {
+            close(m_state == STATE_LOGIN ? LoadStats.failed : LoadStats.dropped);
+            return;
+        }
+        if (length == 0)
+            return;
+        LoadTest.getStats().bytesIn.add(length);
+
+        if (m_state == STATE_LOGIN) {
+            LoadTest.getStats().loginLatency.record(now - m_connectTime);
+            if ((response & QueuedPlayer.LOGIN_SUCCESS) == 0) {
+                System.out.println(getUsername() + ": login response " + response);
+                close(LoadStats.failed);
+                return;
+            }
+
+            m_state = STATE_ONLINE;
+            LoadStats.online.incrementAndGet();
+            m_nextWalk = now + randomDelay(LoadTest.walkInterval);
+            m_nextInteract = now + randomDelay(LoadTest.interactInterval);
+            m_nextKeepAlive = now + randomDelay(LoadTest.keepAliveInterval);
+            offset = 1;
+        }
+
+        if (length > offset)
+            handleTickData(length - offset, now);
+    }
+
+    private void handleTickData(int length, long now) {
+        // The server flushes once per tick, a gap between reads marks the next tick
+        if (now - m_lastRead > TICK_BURST_GAP) {
+            if (m_burstStart != 0) {
+                long tickRate = LoadTest.tickRate;
+                long interval = now - m_burstStart;
+                long ticks = Math.max(1, (interval + tickRate / 2) / tickRate);
+                LoadTest.getStats().tickJitter.record(Math.abs(interval - ticks * tickRate));
+                LoadTest.getStats().tickBytes.record(m_burstBytes);
+            }
+            m_burstStart = now;
+            m_burstBytes = 0;
+        }
+        m_burstBytes += length;
+        m_lastRead = now;
+    }
+
+    private long randomDelay(long interval) {
+        if (interval <= 0)
+            return Long.MAX_VALUE;
+        return (long)(m_random.nextDouble() * interval);
+    }
+
+    public void update(long now) {
+        // Finish sending a login packet the socket didn't take all of
+        if (m_state == STATE_LOGIN)
+            flush();
+        if (m_state != STATE_ONLINE)
+            return;
+
+        if (now >= m_nextWalk) {
+            int x = SPAWN_X + m_random.nextInt(WALK_RADIUS * 2 + 1) - WALK_RADIUS;
+            int y = SPAWN_Y + m_random.nextInt(WALK_RADIUS * 2 + 1) - WALK_RADIUS;
+            m_stream.startPacket();
+            m_stream.writeOpcode(Player.OPCODE_WALKTO, m_isaacOutgoing);
+            m_stream.writeUnsignedShort(x);
+            m_stream.writeUnsignedShort(y);
+            m_stream.endPacket();
+            m_nextWalk = now + LoadTest.walkInterval;
+        }
+
+        if (now >= m_nextInteract) {
+            int x = SPAWN_X + m_random.nextInt(WALK_RADIUS * 2 + 1) - WALK_RADIUS;
+            int y = SPAWN_Y + m_random.nextInt(WALK_RADIUS * 2 + 1) - WALK_RADIUS;
+            m_stream.startPacket();
+            m_stream.writeOpcode(Player.OPCODE_INTERACT_OBJECT_OPTION1, m_isaacOutgoing);
+            m_stream.writeUnsignedShort(x);
+            m_stream.writeUnsignedShort(y);
+            m_stream.endPacket();
+            m_nextInteract = now + LoadTest.interactInterval;
+        }
+
+        if (now >= m_nextKeepAlive) {
+            m_stream.startPacket();
+            m_stream.writeOpcode(Player.OPCODE_KEEPALIVE, m_isaacOutgoing);
+            m_stream.endPacket();
+            m_nextKeepAlive = now + LoadTest.keepAliveInterval;
+        }
+
+        flush();
+    }
+
+    private void flush() {
+        if (m_socket == null || m_stream.getPosition() == 0)
+            return;
+
+        // Writes can be partial under load, unsent bytes go out on the next update
+        try {
+            LoadTest.getStats().bytesOut.add(m_stream.write(m_socket));
+        } catch (Exception e) {
+            close(m_state == STATE_LOGIN ? LoadStats.failed : LoadStats.dropped);
+        }
+    }
+
+    public void close(AtomicInteger counter) {
+        if (m_state == STATE_ONLINE)
+            LoadStats.online.decrementAndGet();
+        if (m_state != STATE_IDLE && m_state != STATE_CLOSED)
+            counter.incrementAndGet();
+        m_state = STATE_CLOSED;
+        if (m_socket != null) {
+            SocketUtil.close(m_socket);
+            m_socket = null;
+            m_key = null;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.loadtest;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+
+public class BotThread implements Runnable {
+    private Thread m_thread;
+    private Selector m_selector;
+    private Bot m_bots[];
+    private InetSocketAddress m_address;
+    private long m_connectInterval;
+    private long m_startTime;
+    private int m_connected;
+    private volatile boolean m_running;
+
+    // Upper bound on how late a bot's next packet can be sent
+    public static final long SELECT_TIMEOUT = 10;
+
+    public BotThread(int id, Bot bots[], InetSocketAddress address, long connectInterval) {
+        m_bots = bots;
+        m_address = address;
+        m_connectInterval = connectInterval;
+        m_thread = new Thread(this, "BotThread-" + id);
+    }
+
+    public boolean start() {
+        try {
+            m_selector = Selector.open();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+        m_running = true;
+        m_startTime = System.nanoTime();
+        m_thread.start();
+        return true;
+    }
+
+    public void stop() {
+        m_running = false;
+        m_selector.wakeup();
+        try {
+            m_thread.join();
+        } catch (Exception e) {
+        }
+    }
+
+    public void run() {
+        while (m_running) {
+            try {
+                m_selector.select(SELECT_TIMEOUT);
+            } catch (Exception e) {
+                e.printStackTrace();
+                break;
+            }
+
+            long now = System.nanoTime();
+            Iterator<SelectionKey> keys = m_selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                Bot bot = (Bot)key.attachment();
+                try {
+                    if (key.isConnectable())
+                        bot.handleConnect(now);
+                    else if (key.isReadable())
+                        bot.handleRead(now);
+                } catch (Exception e) {
+                    bot.close(bot.getState() == Bot.STATE_ONLINE ? LoadStats.dropped : LoadStats.failed);
+                }
+            }
+
+            // Ramp connections up at the configured rate
+            while (m_connected < m_bots.length && now - m_startTime >= m_connected * m_connectInterval)
+                m_bots[m_connected++].connect(m_selector, m_address, now);
+
+            for (int i = 0; i < m_connected; i++)
+                m_bots[i].update(now);
+        }
+
+        for (Bot bot : m_bots)
+            bot.close(LoadStats.dropped);
+        try {
+            m_selector.close();
+        } catch (Exception e) {
+        }
+    }
+}
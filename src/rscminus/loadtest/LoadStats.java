@@ -0,0 +1,49 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.loadtest;
+
+import rscminus.common.Histogram;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the bots observed during one report interval. Connection counters are shared by every
+ * interval, histograms and byte counts start over each time.
+ */
+public class LoadStats {
+    public final Histogram loginLatency;
+    public final Histogram tickBytes;
+    public final Histogram tickJitter;
+    public final LongAdder bytesIn;
+    public final LongAdder bytesOut;
+
+    public static final AtomicInteger online = new AtomicInteger();
+    public static final AtomicInteger failed = new AtomicInteger();
+    public static final AtomicInteger dropped = new AtomicInteger();
+
+    public LoadStats() {
+        loginLatency = new Histogram();
+        tickBytes = new Histogram();
+        tickJitter = new Histogram();
+        bytesIn = new LongAdder();
+        bytesOut = new LongAdder();
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * rscminus
+ *
+ * This file is part of rscminus.
+ *
+ * rscminus is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * rscminus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with rscminus. If not,
+ * see <http://www.gnu.org/licenses/>.
+ *
+ * Authors: see <https://github.com/OrN/rscminus>
+ */
+
+package rscminus.loadtest;
+
+import rscminus.common.Crypto;
+import rscminus.common.Histogram;
+import rscminus.common.Settings;
+import rscminus.game.Server;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Headless load generator. Logs bots into a running server with the real login handshake, has
+ * them walk, interact with objects and send keepalives, and reports what the clients observe.
+ */
+public class LoadTest {
+    private static volatile LoadStats m_stats = new LoadStats();
+
+    // Constants
+    public static final int DEFAULT_BOT_COUNT = 100;
+    public static final int DEFAULT_BOT_THREADS = 2;
+    public static final int DEFAULT_CONNECT_RATE = 50;
+    public static final int DEFAULT_REPORT_INTERVAL = 10;
+    public static final int DEFAULT_WALK_INTERVAL = 1300;
+    public static final int DEFAULT_INTERACT_INTERVAL = 10000;
+    public static final int DEFAULT_KEEPALIVE_INTERVAL = 5000;
+
+    // Settings, intervals are in nanoseconds
+    public static int botCount = DEFAULT_BOT_COUNT;
+    public static int botThreads = DEFAULT_BOT_THREADS;
+    public static int connectRate = DEFAULT_CONNECT_RATE;
+    public static int duration = 0;
+    public static int reportInterval = DEFAULT_REPORT_INTERVAL;
+    public static String host = "127.0.0.1";
+    public static int port = Server.DEFAULT_PORT;
+    public static long walkInterval = DEFAULT_WALK_INTERVAL * 1000000L;
+    public static long interactInterval = DEFAULT_INTERACT_INTERVAL * 1000000L;
+    public static long keepAliveInterval = DEFAULT_KEEPALIVE_INTERVAL * 1000000L;
+    public static long tickRate = Server.DEFAULT_TICK_RATE * 1000000L;
+
+    public static LoadStats getStats() {
+        return m_stats;
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.1fms", nanos / 1000000.0);
+    }
+
+    private static String formatQuantiles(Histogram histogram, boolean millis) {
+        if (histogram.getCount() == 0)
+            return "-";
+        long values[] = { histogram.getQuantile(0.5), histogram.getQuantile(0.99), histogram.getMax() };
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0)
+                out.append('/');
+            out.append(millis ? formatMillis(values[i]) : Long.toString(values[i]));
+        }
+        return out.toString();
+    }
+
+    private static void report(LoadStats stats, long elapsed) {
+        double seconds = elapsed / 1000000000.0;
+        System.out.println("online: " + LoadStats.online.get() + "/" + botCount +
+                ", failed: " + LoadStats.failed.get() + ", dropped: " + LoadStats.dropped.get() +
+                ", logins (p50/p99/max): " + stats.loginLatency.getCount() + " " + formatQuantiles(stats.loginLatency, true) +
+                ", bytes/tick: " + formatQuantiles(stats.tickBytes, false) +
+                ", tick jitter: " + formatQuantiles(stats.tickJitter, true) +
+                ", in: " + (long)(stats.bytesIn.sum() / seconds / 1024) + "KB/s" +
+                ", out: " + (long)(stats.bytesOut.sum() / seconds / 1024) + "KB/s");
+    }
+
+    private static void printHelp() {
+        System.out.println("\nrscminus load test v" + Settings.versionNumber + "\n");
+        System.out.println("syntax:");
+        System.out.println("\t[OPTIONS]");
+        System.out.println("options:");
+        System.out.println("\t-b<bots>\t\tNumber of bots to log in (Default is " + DEFAULT_BOT_COUNT + ")");
+        System.out.println("\t-c<rate>\t\tBots connected per second (Default is " + DEFAULT_CONNECT_RATE + ")");
+        System.out.println("\t-d<seconds>\t\tStop after this many seconds (Default is to run until killed)");
+        System.out.println("\t-h\t\t\tShow this usage dialog");
+        System.out.println("\t-i<ms>\t\t\tObject interaction interval, 0 disables (Default is " + DEFAULT_INTERACT_INTERVAL + ")");
+        System.out.println("\t-k<ms>\t\t\tKeepalive interval, 0 disables (Default is " + DEFAULT_KEEPALIVE_INTERVAL + ")");
+        System.out.println("\t-r<seconds>\t\tReport interval (Default is " + DEFAULT_REPORT_INTERVAL + ")");
+        System.out.println("\t-s<host[:port]>\t\tServer address (Default is " + host + ":" + port + ")");
+        System.out.println("\t-t<threads>\t\tBot selector threads (Default is " + DEFAULT_BOT_THREADS + ")");
+        System.out.println("\t-w<ms>\t\t\tWalk interval, 0 disables (Default is " + DEFAULT_WALK_INTERVAL + ")");
+        System.out.println("\nStart a local server with -a so bots aren't limited by its per address connect rate.");
+    }
+
+    private static boolean parseArguments(String args[]) {
+        for (String arg : args) {
+            if (arg.length() < 2)
+                return false;
+            try {
+                String value = arg.substring(2);
+                switch(arg.toLowerCase().substring(0, 2)) {
+                    case "-b":
+                        botCount = Integer.parseInt(value);
+                        if (botCount < 1)
+                            return false;
+                        break;
+                    case "-c":
+                        connectRate = Integer.parseInt(value);
+                        if (connectRate < 1)
+                            return false;
+                        break;
+                    case "-d":
+                        duration = Integer.parseInt(value);
+                        break;
+                    case "-i":
+                        interactInterval = Long.parseLong(value) * 1000000L;
+                        break;
+                    case "-k":
+                        keepAliveInterval = Long.parseLong(value) * 1000000L;
+                        break;
+                    case "-r":
+                        reportInterval = Integer.parseInt(value);
+                        if (reportInterval < 1)
+                            return false;
+                        break;
+                    case "-s":
+                        int split = value.lastIndexOf(':');
+                        if (split != -1) {
+                            port = Integer.parseInt(value.substring(split + 1));
+                            value = value.substring(0, split);
+                        }
+                        host = value;
+                        break;
+                    case "-t":
+                        botThreads = Integer.parseInt(value);
+                        if (botThreads < 1)
+                            return false;
+                        break;
+                    case "-w":
+                        walkInterval = Long.parseLong(value) * 1000000L;
+                        break;
+                    default:
+                        return false;
+                }
+            } catch (Exception e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static void main(String args[]) {
+        if (!parseArguments(args)) {
+            printHelp();
+            return;
+        }
+
+        // The server's public key, from the directory the server was started in
+        if (!Crypto.loadPublicKey())
+            return;
+
+        // Bots are dealt out round robin, each thread ramps up its share
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        int threadCount = Math.min(botThreads, botCount);
+        long connectInterval = 1000000000L * threadCount / connectRate;
+        BotThread threads[] = new BotThread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            Bot bots[] = new Bot[(botCount - i + threadCount - 1) / threadCount];
+            for (int j = 0; j < bots.length; j++)
+                bots[j] = new Bot(i + j * threadCount);
+            threads[i] = new BotThread(i, bots, address, connectInterval);
+            if (!threads[i].start())
+                return;
+        }
+
+        System.out.println("Started " + botCount + " bots against " + host + ":" + port);
+
+        long start = System.nanoTime();
+        long last = start;
+        while (duration <= 0 || System.nanoTime() - start < duration * 1000000000L) {
+            try {
+                Thread.sleep(reportInterval * 1000L);
+            } catch (Exception e) {
+                break;
+            }
+
+            LoadStats stats = m_stats;
+            m_stats = new LoadStats();
+            long now = System.nanoTime();
+            report(stats, now - last);
+            last = now;
+        }
+
+        for (BotThread thread : threads)
+            thread.stop();
+    }
+}